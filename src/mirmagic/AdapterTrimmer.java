@@ -0,0 +1,69 @@
+package mirmagic;
+
+/**
+ * Finds a known 3' adapter in reads and applies a length filter to the trimmed reads
+ * The adapter is found where the full adapter occurs in the read, or where a suffix of the read at least
+ * the minimum overlap long equals the beginning of the adapter; the leftmost such position is used
+ * Matches are exact, ignoring case
+ * Nothing is copied: clients get the trimmed length and take the prefix of the read
+ * @author prussell
+ *
+ */
+public class AdapterTrimmer {
+
+	private char[] adapter;
+	private int minOverlap;
+	private int minLength;
+	private int maxLength;
+
+	/**
+	 * @param adapter Adapter sequence
+	 * @param minOverlap Minimum overlap between the end of a read and the beginning of the adapter to trim
+	 * @param minLength Minimum read length after trimming
+	 * @param maxLength Maximum read length after trimming
+	 */
+	public AdapterTrimmer(String adapter, int minOverlap, int minLength, int maxLength) {
+		if(adapter.isEmpty()) {
+			throw new IllegalArgumentException("Adapter sequence is empty");
+		}
+		if(minOverlap < 1 || minOverlap > adapter.length()) {
+			throw new IllegalArgumentException("Min adapter overlap must be between 1 and the adapter length: " + minOverlap);
+		}
+		if(minLength < 0 || maxLength < minLength) {
+			throw new IllegalArgumentException("Invalid read length limits: " + minLength + ", " + maxLength);
+		}
+		this.adapter = adapter.toUpperCase().toCharArray();
+		this.minOverlap = minOverlap;
+		this.minLength = minLength;
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * @param read Read bases
+	 * @return Length of the read with the adapter and everything after it removed, or the read length if no adapter is found
+	 */
+	public int trimmedLength(CharSequence read) {
+		int len = read.length();
+		for(int i = 0; i + minOverlap <= len; i++) {
+			int overlap = Math.min(adapter.length, len - i);
+			boolean match = true;
+			for(int j = 0; j < overlap; j++) {
+				if(Character.toUpperCase(read.charAt(i + j)) != adapter[j]) {
+					match = false;
+					break;
+				}
+			}
+			if(match) return i;
+		}
+		return len;
+	}
+
+	/**
+	 * @param trimmedLength Read length after trimming
+	 * @return True iff the length is within the limits
+	 */
+	public boolean passesLengthFilter(int trimmedLength) {
+		return trimmedLength >= minLength && trimmedLength <= maxLength;
+	}
+
+}
@@ -0,0 +1,46 @@
+package mirmagic;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that records a flight recorder event for each block written to the underlying stream
+ * Meant to sit under a BAM writer, which writes one compressed block per call
+ * The writer deflates each block before writing it, so events time the write of the compressed bytes only;
+ * compression time shows up in the CPU samples of the recording, not in these events
+ * @author prussell
+ *
+ */
+public class BamFlushEventOutputStream extends FilterOutputStream {
+
+	private String name;
+
+	/**
+	 * @param out Underlying stream
+	 * @param name Name of the output to report in events
+	 */
+	public BamFlushEventOutputStream(OutputStream out, String name) {
+		super(out);
+		this.name = name;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		MirmagicEvents.BamFlush event = new MirmagicEvents.BamFlush();
+		event.begin();
+		out.write(b, off, len);
+		event.end();
+		if(event.shouldCommit()) {
+			event.output = name;
+			event.bytes = len;
+			event.commit();
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+}
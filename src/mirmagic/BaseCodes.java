@@ -0,0 +1,149 @@
+package mirmagic;
+
+import java.util.Arrays;
+
+/**
+ * Numeric codes for nucleotide bases, looked up in a table indexed by character
+ * A, C, G and T (either case) get their 2 bit codes 0-3, N gets 4, and everything else is illegal
+ * Codes are stored one per byte so N fits; the off-heap index and prefilter pack them 2 bits per base into kmer keys
+ * @author prussell
+ *
+ */
+public final class BaseCodes {
+
+	public static final byte A = 0;
+	public static final byte C = 1;
+	public static final byte G = 2;
+	public static final byte T = 3;
+	public static final byte N = 4;
+	public static final byte ILLEGAL = -1;
+
+	/**
+	 * Validation status: sequence is valid
+	 */
+	public static final int VALID = 0;
+
+	/**
+	 * Validation status: sequence is shorter than the minimum length
+	 */
+	public static final int TOO_SHORT = 1;
+
+	/**
+	 * Validation status: sequence contains a character that is not a base or N
+	 */
+	public static final int ILLEGAL_CHAR = 2;
+
+	/**
+	 * Validation status: sequence contains too many N's
+	 */
+	public static final int TOO_MANY_NS = 3;
+
+	/**
+	 * Sequences longer than this are not checked for N content
+	 */
+	public static final int MAX_LEN_TO_CHECK_N_CONTENT = 5000;
+
+	private static final byte[] TABLE = new byte[256];
+
+	static {
+		Arrays.fill(TABLE, ILLEGAL);
+		TABLE['A'] = A; TABLE['a'] = A;
+		TABLE['C'] = C; TABLE['c'] = C;
+		TABLE['G'] = G; TABLE['g'] = G;
+		TABLE['T'] = T; TABLE['t'] = T;
+		TABLE['N'] = N; TABLE['n'] = N;
+	}
+
+	private BaseCodes() {}
+
+	/**
+	 * @param c Character
+	 * @return Code of the character
+	 */
+	public static byte code(char c) {
+		return c < 256 ? TABLE[c] : ILLEGAL;
+	}
+
+	/**
+	 * Reverse complement a sequence of bases and N's, keeping the case of each base
+	 * @param bases Sequence bases
+	 * @return The reverse complement
+	 * @throws IllegalArgumentException if the sequence contains an illegal character
+	 */
+	public static String reverseComplement(CharSequence bases) {
+		int len = bases.length();
+		char[] rtrn = new char[len];
+		for(int i = 0; i < len; i++) {
+			char c = bases.charAt(i);
+			char rc;
+			switch(c) {
+			case 'A': rc = 'T'; break;
+			case 'C': rc = 'G'; break;
+			case 'G': rc = 'C'; break;
+			case 'T': rc = 'A'; break;
+			case 'N': rc = 'N'; break;
+			case 'a': rc = 't'; break;
+			case 'c': rc = 'g'; break;
+			case 'g': rc = 'c'; break;
+			case 't': rc = 'a'; break;
+			case 'n': rc = 'n'; break;
+			default: throw new IllegalArgumentException("Illegal character in sequence: " + c);
+			}
+			rtrn[len - 1 - i] = rc;
+		}
+		return new String(rtrn);
+	}
+
+	/**
+	 * Get the codes of a sequence
+	 * @param bases Sequence bases
+	 * @return Codes of the bases
+	 * @throws IllegalArgumentException if the sequence contains an illegal character
+	 */
+	public static byte[] encode(String bases) {
+		byte[] rtrn = new byte[bases.length()];
+		for(int i = 0; i < rtrn.length; i++) {
+			rtrn[i] = code(bases.charAt(i));
+			if(rtrn[i] == ILLEGAL) {
+				throw new IllegalArgumentException("Illegal character in sequence: " + bases.charAt(i));
+			}
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Check that a sequence is valid and write the codes of its bases in one pass
+	 * @param bases Sequence bases
+	 * @param minLength Minimum sequence length
+	 * @param maxPctN Maximum proportion of N's
+	 * @param codes Array to write the codes to, at least as long as the sequence
+	 * @return VALID, TOO_SHORT, ILLEGAL_CHAR or TOO_MANY_NS; codes are only complete if VALID
+	 */
+	public static int validateAndEncode(CharSequence bases, int minLength, double maxPctN, byte[] codes) {
+		return validateAndEncode(bases, bases.length(), minLength, maxPctN, codes);
+	}
+
+	/**
+	 * Check that the beginning of a sequence is valid and write its codes in one pass
+	 * @param bases Sequence bases
+	 * @param len Number of bases at the beginning of the sequence to check, e.g. the length after trimming the end
+	 * @param minLength Minimum sequence length
+	 * @param maxPctN Maximum proportion of N's
+	 * @param codes Array to write the codes to, at least len long
+	 * @return VALID, TOO_SHORT, ILLEGAL_CHAR or TOO_MANY_NS; codes are only complete if VALID
+	 */
+	public static int validateAndEncode(CharSequence bases, int len, int minLength, double maxPctN, byte[] codes) {
+		if(len < minLength) return TOO_SHORT;
+		int numNs = 0;
+		for(int i = 0; i < len; i++) {
+			char ch = bases.charAt(i);
+			byte c = ch < 256 ? TABLE[ch] : ILLEGAL;
+			if(c == ILLEGAL) return ILLEGAL_CHAR;
+			if(c == N) numNs++;
+			codes[i] = c;
+		}
+		if(len <= MAX_LEN_TO_CHECK_N_CONTENT && (double) numNs / (double) len > maxPctN) return TOO_MANY_NS;
+		return VALID;
+	}
+
+}
@@ -0,0 +1,85 @@
+package mirmagic;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterImpl;
+import net.sf.samtools.SAMRecord;
+
+/**
+ * SAM or BAM file writer that can be closed off at checkpoints and continued after a restart
+ * At a checkpoint the file is closed, so it is a complete SAM or BAM of the records so far, and synced to
+ * disk; writing then continues by appending to the file without a header, after the BAM end of file marker
+ * is removed
+ * @author prussell
+ *
+ */
+public class CheckpointedSamWriter implements SAMFileWriter {
+
+	private String output;
+	private String format;
+	private SAMFileHeader header;
+	private SAMFileWriterImpl writer;
+
+	/**
+	 * Start a new file
+	 * @param output Output file name; not standard output
+	 * @param format One of the formats in SamtoolsUtils
+	 * @param header SAM header
+	 * @throws IOException
+	 */
+	public CheckpointedSamWriter(String output, String format, SAMFileHeader header) throws IOException {
+		this(output, format, header, -1);
+	}
+
+	/**
+	 * Continue a file from a checkpoint, dropping anything written after it
+	 * @param output Output file name; not standard output
+	 * @param format One of the formats in SamtoolsUtils
+	 * @param header SAM header
+	 * @param resumeLength Position to continue at, from checkpoint(), or -1 to start a new file
+	 * @throws IOException
+	 */
+	public CheckpointedSamWriter(String output, String format, SAMFileHeader header, long resumeLength) throws IOException {
+		if(output.equals(SamtoolsUtils.STDOUT)) {
+			throw new IllegalArgumentException("Cannot checkpoint output to standard output");
+		}
+		this.output = output;
+		this.format = format;
+		this.header = header;
+		writer = resumeLength < 0 ? SamtoolsUtils.createWriter(output, format, header) : SamtoolsUtils.createAppendingWriter(output, format, header, resumeLength);
+	}
+
+	/**
+	 * Close the file so it holds every record written so far, sync it to disk and reopen it to append
+	 * @return Position to continue at if the run is restarted from here
+	 * @throws IOException
+	 */
+	public long checkpoint() throws IOException {
+		writer.close();
+		RandomAccessFile raf = new RandomAccessFile(output, "rw");
+		raf.getFD().sync();
+		raf.close();
+		long rtrn = SamtoolsUtils.endOfRecords(output, format);
+		writer = SamtoolsUtils.createAppendingWriter(output, format, header, rtrn);
+		return rtrn;
+	}
+
+	@Override
+	public void addAlignment(SAMRecord alignment) {
+		writer.addAlignment(alignment);
+	}
+
+	@Override
+	public SAMFileHeader getFileHeader() {
+		return header;
+	}
+
+	@Override
+	public void close() {
+		writer.close();
+	}
+
+}
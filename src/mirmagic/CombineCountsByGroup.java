@@ -1,15 +1,24 @@
 package mirmagic;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.Collection;
-import java.util.HashMap;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
 
 import net.sf.samtools.SAMFileReader;
 import net.sf.samtools.SAMRecord;
@@ -19,59 +28,63 @@ import net.sf.samtools.SAMRecordIterator;
  * Combine counts in a bam file by reference sequence they are mapped to: reference
  * sequences are grouped according to a provided grouping; reads mapping to multiple members
  * of a group are counted once for the group
+ * Groups are independent, so they can be counted in parallel with one bam reader per thread
+ * Several bams can be counted at once into a matrix of groups by samples, sharing the reference lengths
+ * and the group table
  * @author prussell
  *
  */
 public class CombineCountsByGroup {
 	
-	private SAMFileReader reader;
-	private Map<String, Integer> refLen;
-	private Map<String, Set<String>> groupByRep;
+	private List<File> bamFiles;
+	private List<String> sampleNames; // One per bam
+	private GroupTable groups;
 	private boolean plusStrandMappingsOnly;
+	private ReadNameSetCache cache = null; // Read names of shared references, or null to query every time
+	private static final int DEFAULT_CACHE_MB = 256;
+	
+	/**
+	 * Output format for several bams: one row per group and one column per sample
+	 */
+	public static final String MATRIX_WIDE = "wide";
+	
+	/**
+	 * Output format for several bams: one row per group and sample, for loading as columns
+	 */
+	public static final String MATRIX_LONG = "long";
 	
 	/**
 	 * 
-	 * @param bam Bam file
+	 * @param bams Bam files
+	 * @param samples Sample name for each bam
 	 * @param refFasta Reference fasta file
-	 * @param groupTable Table of groups. Line format: ref_name group_name
+	 * @param groupTable Table of groups, compiled by GroupTable or text with line format: ref_name group_name
 	 * @param plusStrandMappingsOnly Only count mappings to plus strand
 	 */
-	private CombineCountsByGroup(String bam, String refFasta, String groupTable, boolean plusStrandMappingsOnly) {
+	private CombineCountsByGroup(List<String> bams, List<String> samples, String refFasta, String groupTable, boolean plusStrandMappingsOnly) {
 		
 		System.out.println("\nCombining counts by group...");
-		System.out.println("Bam file:\t" + bam);
+		for(String bam : bams) {
+			System.out.println("Bam file:\t" + bam);
+		}
 		System.out.println("Reference fasta file\t" + refFasta);
 		System.out.println("Group table:\t" + groupTable);
 		System.out.println("Plus strand mappings only:\t" + plusStrandMappingsOnly);
 		
-		// Initialize the SAM reader
-		reader = new SAMFileReader(new File(bam));
-		// Get reference sequence lengths
-		Collection<Sequence> refSeqs = FastaReader.readFromFile(refFasta);
-		refLen = new HashMap<String, Integer>();
-		for(Sequence seq : refSeqs) {
-			refLen.put(seq.getName(), Integer.valueOf(seq.getLength()));
-		}
-		// Establish the groups
+		if(bams.isEmpty() || bams.size() != samples.size()) {
+			throw new IllegalArgumentException("Need one sample name for each of at least one bam file");
+		}
+		if(new HashSet<String>(samples).size() != samples.size()) {
+			throw new IllegalArgumentException("Sample names must be unique: " + samples);
+		}
+		bamFiles = new ArrayList<File>();
+		for(String bam : bams) {
+			bamFiles.add(new File(bam));
+		}
+		sampleNames = new ArrayList<String>(samples);
+		// Load the reference lengths and groups with dense IDs
 		try {
-			BufferedReader r = new BufferedReader(new FileReader(new File(groupTable)));
-			StringParser p = new StringParser();
-			groupByRep = new HashMap<String, Set<String>>();
-			while(r.ready()) {
-				String line = r.readLine();
-				p.parse(line);
-				if(p.getFieldCount() != 2) {
-					r.close();
-					throw new IllegalArgumentException("Group table format: <ref name>   <group name>");
-				}
-				String refName = p.asString(0);
-				String groupName = p.asString(1);
-				if(!groupByRep.containsKey(groupName)) {
-					groupByRep.put(groupName, new HashSet<String>());
-				}
-				groupByRep.get(groupName).add(refName);
-			}
-			r.close();
+			groups = GroupTable.load(refFasta, groupTable);
 		} catch(IOException e) {
 			e.printStackTrace();
 			System.exit(-1);
@@ -79,11 +92,33 @@ public class CombineCountsByGroup {
 		this.plusStrandMappingsOnly = plusStrandMappingsOnly;
 	}
 	
-	private Set<String> getMappedRecordNames(String refName) {
-		if(!refLen.containsKey(refName)) {
-			throw new IllegalArgumentException("Sequence " + refName + " is not in sequence fasta file. Sets of sequences must match.");
+	/**
+	 * Cache the read names of references that belong to more than one group instead of querying the bam again
+	 * @param maxBytes Maximum estimated memory of the cache
+	 */
+	private void setCacheSize(long maxBytes) {
+		cache = maxBytes > 0 ? new ReadNameSetCache(maxBytes) : null;
+	}
+	
+	/**
+	 * Get the read names mapped to a reference from the cache, or query the bam and cache them if the
+	 * reference belongs to more than one group
+	 */
+	private Set<String> getCachedMappedRecordNames(int bamIndex, SAMFileReader reader, int refId) {
+		// Only references in several groups are queried more than once, so only they are worth caching
+		if(cache == null || groups.getGroupsOfRef(refId).length < 2) {
+			return getMappedRecordNames(reader, refId);
+		}
+		long key = (long) bamIndex * groups.getNumRefs() + refId;
+		Set<String> rtrn = cache.get(key);
+		if(rtrn == null) {
+			rtrn = cache.put(key, getMappedRecordNames(reader, refId));
 		}
-		SAMRecordIterator iter = reader.query(refName, 0, refLen.get(refName).intValue(), false);
+		return rtrn;
+	}
+	
+	private Set<String> getMappedRecordNames(SAMFileReader reader, int refId) {
+		SAMRecordIterator iter = reader.query(groups.getRefName(refId), 0, groups.getRefLength(refId), false);
 		Set<String> rtrn = new HashSet<String>();
 		while(iter.hasNext()) {
 			SAMRecord rec = iter.next();
@@ -94,23 +129,80 @@ public class CombineCountsByGroup {
 		return rtrn;
 	}
 	
-	private int combinedCount(Set<String> refNames) {
+	private int combinedCount(int bamIndex, SAMFileReader reader, int[] refIds) {
 		Set<String> readNames = new HashSet<String>();
-		for(String ref : refNames) {
-			readNames.addAll(getMappedRecordNames(ref));
+		for(int ref : refIds) {
+			readNames.addAll(getCachedMappedRecordNames(bamIndex, reader, ref));
 		}
 		return readNames.size();
 	}
 	
-	private int combinedCount(String groupName) {
-		return combinedCount(groupByRep.get(groupName));
+	private int combinedCount(int bamIndex, SAMFileReader reader, int groupId) {
+		MirmagicEvents.GroupCount event = new MirmagicEvents.GroupCount();
+		event.begin();
+		int[] refIds = groups.getRefsOfGroup(groupId);
+		int count = combinedCount(bamIndex, reader, refIds);
+		event.end();
+		if(event.shouldCommit()) {
+			event.sample = sampleNames.get(bamIndex);
+			event.group = groups.getGroupName(groupId);
+			event.numRefs = refIds.length;
+			event.count = count;
+			event.commit();
+		}
+		return count;
 	}
 	
-	private void writeCombinedCounts(String outFile) {
+	/**
+	 * Count each group in each bam and write the counts sorted by group name
+	 * With one bam the table has two columns, group and count; with several bams it is a matrix in the requested format
+	 * The output is gzipped if the file name ends in .gz
+	 * @param outFile Output table
+	 * @param numThreads Number of groups to count at once, each thread with its own bam readers
+	 * @param matrixFormat MATRIX_WIDE or MATRIX_LONG, for several bams
+	 */
+	private void writeCombinedCounts(String outFile, int numThreads, String matrixFormat) {
+		if(numThreads < 1) {
+			throw new IllegalArgumentException("Number of threads must be at least 1: " + numThreads);
+		}
+		if(!matrixFormat.equals(MATRIX_WIDE) && !matrixFormat.equals(MATRIX_LONG)) {
+			throw new IllegalArgumentException("Invalid matrix format: " + matrixFormat);
+		}
+		int numGroups = groups.getNumGroups();
+		int[][] counts = numThreads == 1 ? countSerial() : countParallel(numThreads);
+		if(cache != null) {
+			System.out.println("Read name cache hits:\t" + cache.getHits() + "\tmisses:\t" + cache.getMisses());
+		}
 		try {
-			FileWriter w = new FileWriter(outFile);
-			for(String group: groupByRep.keySet()) {
-				w.write(group + "\t" + combinedCount(group) + "\n");
+			OutputStream os = new FileOutputStream(outFile);
+			if(outFile.endsWith(".gz")) {
+				os = new GZIPOutputStream(os);
+			}
+			BufferedWriter w = new BufferedWriter(new OutputStreamWriter(os));
+			if(bamFiles.size() == 1) {
+				for(int i = 0; i < numGroups; i++) {
+					w.write(groups.getGroupName(i) + "\t" + counts[0][i] + "\n");
+				}
+			} else if(matrixFormat.equals(MATRIX_WIDE)) {
+				w.write("group");
+				for(String sample : sampleNames) {
+					w.write("\t" + sample);
+				}
+				w.write("\n");
+				for(int i = 0; i < numGroups; i++) {
+					w.write(groups.getGroupName(i));
+					for(int b = 0; b < bamFiles.size(); b++) {
+						w.write("\t" + counts[b][i]);
+					}
+					w.write("\n");
+				}
+			} else {
+				w.write("group\tsample\tcount\n");
+				for(int i = 0; i < numGroups; i++) {
+					for(int b = 0; b < bamFiles.size(); b++) {
+						w.write(groups.getGroupName(i) + "\t" + sampleNames.get(b) + "\t" + counts[b][i] + "\n");
+					}
+				}
 			}
 			w.close();
 		} catch(IOException e) {
@@ -119,17 +211,153 @@ public class CombineCountsByGroup {
 		}
 	}
 	
+	/**
+	 * Count the bams one at a time with a single reader each
+	 * @return Counts indexed by bam and group
+	 */
+	private int[][] countSerial() {
+		int[][] rtrn = new int[bamFiles.size()][groups.getNumGroups()];
+		for(int b = 0; b < bamFiles.size(); b++) {
+			SAMFileReader reader = new SAMFileReader(bamFiles.get(b));
+			for(int i = 0; i < groups.getNumGroups(); i++) {
+				rtrn[b][i] = combinedCount(b, reader, i);
+			}
+			reader.close();
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Count every group in every bam on a thread pool; SAMFileReader is not thread safe, so each thread
+	 * opens its own reader for each bam it counts
+	 * @return Counts indexed by bam and group
+	 */
+	private int[][] countParallel(int numThreads) {
+		final List<SAMFileReader> readers = Collections.synchronizedList(new ArrayList<SAMFileReader>());
+		final ThreadLocal<SAMFileReader[]> threadReaders = new ThreadLocal<SAMFileReader[]>() {
+			@Override
+			protected SAMFileReader[] initialValue() {
+				return new SAMFileReader[bamFiles.size()];
+			}
+		};
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+		for(int b = 0; b < bamFiles.size(); b++) {
+			for(int i = 0; i < groups.getNumGroups(); i++) {
+				final int bamIndex = b;
+				final int group = i;
+				futures.add(executor.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() {
+						SAMFileReader[] r = threadReaders.get();
+						if(r[bamIndex] == null) {
+							r[bamIndex] = new SAMFileReader(bamFiles.get(bamIndex));
+							readers.add(r[bamIndex]);
+						}
+						return Integer.valueOf(combinedCount(bamIndex, r[bamIndex], group));
+					}
+				}));
+			}
+		}
+		int numGroups = groups.getNumGroups();
+		int[][] rtrn = new int[bamFiles.size()][numGroups];
+		try {
+			for(int j = 0; j < futures.size(); j++) {
+				rtrn[j / numGroups][j % numGroups] = futures.get(j).get().intValue();
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while counting groups", e);
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+			synchronized(readers) {
+				for(SAMFileReader r : readers) {
+					r.close();
+				}
+			}
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Read a manifest of bam files
+	 * Line format: bam_file, or sample_name bam_file
+	 * @param manifest Manifest file
+	 * @param bams List to add bam files to
+	 * @param samples List to add sample names to
+	 * @throws IOException
+	 */
+	private static void readManifest(String manifest, List<String> bams, List<String> samples) throws IOException {
+		BufferedReader r = new BufferedReader(new FileReader(manifest));
+		LineTokenizer p = new LineTokenizer();
+		String line;
+		while((line = r.readLine()) != null) {
+			if(line.trim().isEmpty()) continue;
+			p.tokenize(line);
+			if(p.getFieldCount() == 1) {
+				bams.add(p.asString(0));
+				samples.add(sampleName(p.asString(0)));
+			} else if(p.getFieldCount() == 2) {
+				samples.add(p.asString(0));
+				bams.add(p.asString(1));
+			} else {
+				r.close();
+				throw new IllegalArgumentException("Bam manifest format: <bam file> or <sample name>   <bam file>");
+			}
+		}
+		r.close();
+	}
+	
+	/**
+	 * @param bam Bam file
+	 * @return Sample name: the file name without directory or .bam extension
+	 */
+	private static String sampleName(String bam) {
+		String name = new File(bam).getName();
+		return name.endsWith(".bam") ? name.substring(0, name.length() - 4) : name;
+	}
+	
 	public static void main(String[] args) {
 		
 		CommandLineParser p = new CommandLineParser();
-		p.addStringArg("-b", "Bam file", true);
+		p.addStringListArg("-b", "Bam file; repeat for several bams", false);
+		p.addStringArg("-bl", "Manifest of bam files, one per line, optionally preceded by a sample name", false);
 		p.addStringArg("-f", "Reference fasta file", true);
-		p.addStringArg("-g", "Group table", true);
+		p.addStringArg("-g", "Group table, text or compiled with GroupTable", true);
 		p.addStringArg("-o", "Output counts table", true);
 		p.addBooleanArg("-p", "Count plus strand mappings only", true);
-		p.parse(args);
-		CombineCountsByGroup c = new CombineCountsByGroup(p.getStringArg("-b"), p.getStringArg("-f"), p.getStringArg("-g"), p.getBooleanArg("-p"));
-		c.writeCombinedCounts(p.getStringArg("-o"));
+		p.addIntArg("-t", "Number of threads to count groups in parallel", false, 1);
+		p.addIntArg("-cm", "Max memory in MB for caching read names of references in several groups (0 to disable)", false, DEFAULT_CACHE_MB);
+		p.addStringArg("-mf", "Output format for several bams: " + MATRIX_WIDE + " (group by sample matrix) or " + MATRIX_LONG + " (group, sample, count rows)", false, MATRIX_WIDE);
+		p.parse(args, true);
+		List<String> bams = new ArrayList<String>();
+		List<String> samples = new ArrayList<String>();
+		if(p.getStringListArg("-b") != null) {
+			for(String bam : p.getStringListArg("-b")) {
+				bams.add(bam);
+				samples.add(sampleName(bam));
+			}
+		}
+		if(p.getStringArg("-bl") != null) {
+			try {
+				readManifest(p.getStringArg("-bl"), bams, samples);
+			} catch(IOException e) {
+				e.printStackTrace();
+				System.exit(-1);
+			}
+		}
+		if(bams.isEmpty()) {
+			p.printHelpMessage();
+			throw new IllegalArgumentException("Provide bam files with -b or -bl");
+		}
+		CombineCountsByGroup c = new CombineCountsByGroup(bams, samples, p.getStringArg("-f"), p.getStringArg("-g"), p.getBooleanArg("-p"));
+		c.setCacheSize(p.getIntArg("-cm") * 1024L * 1024L);
+		c.writeCombinedCounts(p.getStringArg("-o"), p.getIntArg("-t"), p.getStringArg("-mf"));
 		
 		System.out.println("");
 		System.out.println("Done combining counts by group.");
@@ -0,0 +1,93 @@
+package mirmagic;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Check that every index type gives the same mappings: map the same reads with PerfectKmerSearch once per
+ * index type and compare the sorted SAM records with those of the map index
+ * Without a fasta and fastq, seeded random data from SyntheticData is used, so a failure can be reproduced
+ * from the seed
+ * @author prussell
+ *
+ */
+public class CompareIndexTypes {
+
+	private static final String[] INDEX_TYPES = {PerfectKmerSearch.INDEX_MAP, PerfectKmerSearch.INDEX_OFF_HEAP, PerfectKmerSearch.INDEX_SUFFIX_ARRAY, PerfectKmerSearch.INDEX_FM};
+
+	/**
+	 * Read the alignment lines of a SAM file, sorted
+	 * @param sam SAM file
+	 * @return Sorted lines other than header lines
+	 * @throws IOException
+	 */
+	static List<String> readSortedRecords(String sam) throws IOException {
+		List<String> rtrn = new ArrayList<String>();
+		BufferedReader r = new BufferedReader(new FileReader(sam));
+		String line;
+		while((line = r.readLine()) != null) {
+			if(!line.startsWith("@")) rtrn.add(line);
+		}
+		r.close();
+		Collections.sort(rtrn);
+		return rtrn;
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		CommandLineParser p = new CommandLineParser();
+		p.setProgramDescription("Map the same reads with each index type (" + String.join(", ", INDEX_TYPES) + ") and check that the SAM records are identical");
+		p.addStringArg("-fa", "Reference fasta; generated with -fq if not given", false);
+		p.addStringArg("-fq", "Query fastq; generated with -fa if not given", false);
+		p.addIntArg("-k", "Kmer length", false, 20);
+		p.addLongArg("-seed", "Seed for generated data", false, 1);
+		p.addIntArg("-nt", "Number of targets to generate", false, 500);
+		p.addIntArg("-nr", "Number of reads to generate", false, 20000);
+		p.addStringArg("-d", "Directory for generated data and outputs; a new temporary directory if not given", false);
+		p.parse(args);
+		String dir = p.getStringArg("-d") == null ? Files.createTempDirectory("mirmagic").toString() : p.getStringArg("-d");
+		String fasta = p.getStringArg("-fa");
+		String fastq = p.getStringArg("-fq");
+		if((fasta == null) != (fastq == null)) {
+			throw new IllegalArgumentException("Provide both -fa and -fq, or neither to generate data");
+		}
+		if(fasta == null) {
+			Random random = new Random(p.getLongArg("-seed"));
+			fasta = new File(dir, "targets.fa").getPath();
+			fastq = new File(dir, "reads.fq").getPath();
+			SyntheticData.writeReads(fastq, SyntheticData.writeTargets(fasta, p.getIntArg("-nt"), random), p.getIntArg("-nr"), random);
+			System.out.println("Generated data with seed " + p.getLongArg("-seed") + " in " + dir);
+		}
+
+		List<String> expected = null;
+		for(String indexType : INDEX_TYPES) {
+			String sam = new File(dir, indexType + ".sam").getPath();
+			PerfectKmerSearch.main(new String[] {"-fa", fasta, "-fq", fastq, "-b", sam, "-of", SamtoolsUtils.FORMAT_SAM, "-k", Integer.toString(p.getIntArg("-k")), "-ix", indexType, "-t", "1"});
+			List<String> records = readSortedRecords(sam);
+			if(expected == null) {
+				expected = records;
+				continue;
+			}
+			if(!records.equals(expected)) {
+				for(int i = 0; i < Math.min(records.size(), expected.size()); i++) {
+					if(!records.get(i).equals(expected.get(i))) {
+						System.out.println("First difference:\n" + INDEX_TYPES[0] + "\t" + expected.get(i) + "\n" + indexType + "\t" + records.get(i));
+						break;
+					}
+				}
+				throw new IllegalStateException("Index type " + indexType + " gives different records from " + INDEX_TYPES[0] + ": " + records.size() + " and " + expected.size() + " records");
+			}
+		}
+		System.out.println("");
+		System.out.println("All index types give the same " + expected.size() + " records.");
+
+	}
+
+}
@@ -0,0 +1,198 @@
+package mirmagic;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Check that mapping a fastq in shards and merging the partial counts gives the same results as mapping it whole
+ * The whole file and every shard are mapped by PerfectKmerSearch in separate processes, as on a cluster, once with
+ * byte range shards and once with record modulo shards; the shards are merged by PartialCounts in another process
+ * The merged group counts and read counts, and the alignments of all shards together, must equal those of the
+ * whole file. Before mapping, FastqParser.findRecordStart() is checked at every shard boundary, every '+' line
+ * and every quality line starting with '@' or '+', which could be taken for a record start
+ * Without a fasta, fastq and group table, seeded random data from SyntheticData is used, so a failure can be
+ * reproduced from the seed
+ * @author prussell
+ *
+ */
+public class CompareShardedCounts {
+
+	private static final String[] SHARD_MODES = {PerfectKmerSearch.SHARD_BYTES, PerfectKmerSearch.SHARD_RECORDS};
+
+	/**
+	 * Run a program of this package in a new JVM with the same class path
+	 * @param dir Directory for the log file
+	 * @param name Name of the log file without extension
+	 * @param mainClass Class to run
+	 * @param args Program arguments
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static void runProcess(String dir, String name, Class<?> mainClass, String... args) throws IOException, InterruptedException {
+		List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(mainClass.getName());
+		command.addAll(Arrays.asList(args));
+		File log = new File(dir, name + ".log");
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+		if(process.waitFor() != 0) {
+			throw new IllegalStateException(mainClass.getSimpleName() + " failed; see " + log);
+		}
+	}
+
+	/**
+	 * Find the byte offset of every record of a fastq file with one record per four lines
+	 * @param fastq Fastq file
+	 * @param lineStarts List to add the offset of every line start to
+	 * @return Record start offsets, followed by the file length
+	 * @throws IOException
+	 */
+	private static List<Long> recordStarts(File fastq, List<Long> lineStarts) throws IOException {
+		byte[] bytes = Files.readAllBytes(fastq.toPath());
+		List<Long> rtrn = new ArrayList<Long>();
+		int line = 0;
+		for(int i = 0; i < bytes.length; i++) {
+			if(i == 0 || bytes[i - 1] == '\n') {
+				lineStarts.add(Long.valueOf(i));
+				if(line % 4 == 0) rtrn.add(Long.valueOf(i));
+				line++;
+			}
+		}
+		rtrn.add(Long.valueOf(bytes.length));
+		return rtrn;
+	}
+
+	/**
+	 * @param recordStarts Sorted record starts followed by the file length
+	 * @param offset Byte offset
+	 * @return The first record start at or after the offset, or the file length
+	 */
+	private static long nextRecordStart(List<Long> recordStarts, long offset) {
+		int i = Collections.binarySearch(recordStarts, Long.valueOf(offset));
+		return recordStarts.get(i >= 0 ? i : -i - 1).longValue();
+	}
+
+	/**
+	 * Check findRecordStart() at the shard boundaries and at every line start that is not a record start
+	 * but begins with '@' or '+'
+	 * @param fastq Fastq file
+	 * @param numShards Number of byte shards
+	 * @return Number of offsets checked
+	 * @throws IOException
+	 */
+	private static int checkRecordStarts(File fastq, int numShards) throws IOException {
+		List<Long> lineStarts = new ArrayList<Long>();
+		List<Long> recordStarts = recordStarts(fastq, lineStarts);
+		byte[] bytes = Files.readAllBytes(fastq.toPath());
+		List<Long> offsets = new ArrayList<Long>();
+		for(int i = 1; i < numShards; i++) {
+			offsets.add(Long.valueOf(PerfectKmerSearch.byteShardStart(bytes.length, i, numShards)));
+		}
+		for(int line = 0; line < lineStarts.size(); line++) {
+			long start = lineStarts.get(line).longValue();
+			if(line % 4 != 0 && start < bytes.length && (bytes[(int) start] == '@' || bytes[(int) start] == '+')) {
+				offsets.add(Long.valueOf(start));
+			}
+		}
+		for(Long offset : offsets) {
+			long found = FastqParser.findRecordStart(fastq, offset.longValue());
+			long expected = nextRecordStart(recordStarts, offset.longValue());
+			if(found != expected) {
+				throw new IllegalStateException("Record start after offset " + offset + " is " + expected + " but findRecordStart() gives " + found);
+			}
+		}
+		return offsets.size();
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+
+		CommandLineParser p = new CommandLineParser();
+		p.setProgramDescription("Map a fastq whole and in shards in separate processes, merge the shards with PartialCounts and check that the results are identical");
+		p.addStringArg("-fa", "Reference fasta; generated with -fq and -g if not given", false);
+		p.addStringArg("-fq", "Query fastq with one record per four lines; generated with -fa and -g if not given", false);
+		p.addStringArg("-g", "Group table; generated with -fa and -fq if not given", false);
+		p.addIntArg("-n", "Number of shards", false, 4);
+		p.addIntArg("-k", "Kmer length", false, 20);
+		p.addLongArg("-seed", "Seed for generated data", false, 1);
+		p.addIntArg("-nt", "Number of targets to generate", false, 500);
+		p.addIntArg("-nr", "Number of reads to generate", false, 20000);
+		p.addStringArg("-d", "Directory for generated data and outputs; a new temporary directory if not given", false);
+		p.parse(args);
+		String dir = p.getStringArg("-d") == null ? Files.createTempDirectory("mirmagic").toString() : p.getStringArg("-d");
+		String fasta = p.getStringArg("-fa");
+		String fastq = p.getStringArg("-fq");
+		String groups = p.getStringArg("-g");
+		int numShards = p.getIntArg("-n");
+		if(numShards < 2) {
+			throw new IllegalArgumentException("Need at least 2 shards: " + numShards);
+		}
+		if((fasta == null) != (fastq == null) || (fasta == null) != (groups == null)) {
+			throw new IllegalArgumentException("Provide all of -fa, -fq and -g, or none to generate data");
+		}
+		if(fasta == null) {
+			Random random = new Random(p.getLongArg("-seed"));
+			fasta = new File(dir, "targets.fa").getPath();
+			fastq = new File(dir, "reads.fq").getPath();
+			groups = new File(dir, "groups.txt").getPath();
+			SyntheticData.writeReads(fastq, SyntheticData.writeTargets(fasta, p.getIntArg("-nt"), random), p.getIntArg("-nr"), random);
+			SyntheticData.writeGroups(groups, p.getIntArg("-nt"));
+			System.out.println("Generated data with seed " + p.getLongArg("-seed") + " in " + dir);
+		}
+		String k = Integer.toString(p.getIntArg("-k"));
+
+		int numOffsets = checkRecordStarts(new File(fastq), numShards);
+		System.out.println("Record starts found correctly after " + numOffsets + " shard boundaries and ambiguous lines.");
+
+		String wholeSam = new File(dir, "whole.sam").getPath();
+		String wholePartial = new File(dir, "whole.pc").getPath();
+		String wholeCounts = new File(dir, "whole.counts").getPath();
+		runProcess(dir, "whole", PerfectKmerSearch.class, "-fa", fasta, "-fq", fastq, "-b", wholeSam, "-of", SamtoolsUtils.FORMAT_SAM, "-k", k, "-pc", wholePartial, "-g", groups);
+		runProcess(dir, "whole_merge", PartialCounts.class, "-p", wholePartial, "-o", wholeCounts);
+		List<String> wholeRecords = CompareIndexTypes.readSortedRecords(wholeSam);
+		List<String> wholeCountLines = Files.readAllLines(new File(wholeCounts).toPath());
+		long[] wholeReadCounts = PartialCounts.read(wholePartial).getStats().getCounts();
+
+		for(String mode : SHARD_MODES) {
+			List<String> mergeArgs = new ArrayList<String>();
+			List<String> records = new ArrayList<String>();
+			PartialCounts merged = null;
+			for(int i = 0; i < numShards; i++) {
+				String name = mode + "_" + i;
+				String sam = new File(dir, name + ".sam").getPath();
+				String partial = new File(dir, name + ".pc").getPath();
+				runProcess(dir, name, PerfectKmerSearch.class, "-fa", fasta, "-fq", fastq, "-b", sam, "-of", SamtoolsUtils.FORMAT_SAM, "-k", k,
+						"-sh", i + "/" + numShards, "-shm", mode, "-pc", partial, "-g", groups);
+				mergeArgs.add("-p");
+				mergeArgs.add(partial);
+				records.addAll(CompareIndexTypes.readSortedRecords(sam));
+				if(merged == null) merged = PartialCounts.read(partial);
+				else merged.add(PartialCounts.read(partial));
+			}
+			String counts = new File(dir, mode + ".counts").getPath();
+			mergeArgs.add("-o");
+			mergeArgs.add(counts);
+			runProcess(dir, mode + "_merge", PartialCounts.class, mergeArgs.toArray(new String[0]));
+			Collections.sort(records);
+			if(!records.equals(wholeRecords)) {
+				throw new IllegalStateException("Alignments of the " + mode + " shards differ from the whole file: " + records.size() + " and " + wholeRecords.size() + " records");
+			}
+			if(!Files.readAllLines(new File(counts).toPath()).equals(wholeCountLines)) {
+				throw new IllegalStateException("Merged group counts of the " + mode + " shards differ from the whole file: compare " + counts + " with " + wholeCounts);
+			}
+			if(!Arrays.equals(merged.getStats().getCounts(), wholeReadCounts)) {
+				throw new IllegalStateException("Merged read counts of the " + mode + " shards differ from the whole file: " + Arrays.toString(merged.getStats().getCounts()) + " and " + Arrays.toString(wholeReadCounts));
+			}
+			System.out.println(numShards + " " + mode + " shards give the same " + records.size() + " records, group counts and read counts as the whole file.");
+		}
+
+	}
+
+}
@@ -0,0 +1,336 @@
+package mirmagic;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of a fasta file with the columns of the samtools faidx format (name, length, offset, bases per line, bytes per line)
+ * Gives sequence names and lengths without reading the sequences, and reads single sequences by random access
+ * Sequence names are the full header line after the '>', as in FastaReader, where samtools uses the first word,
+ * so the index file is only written when asked for and never under the samtools .fai name
+ * Lines of each sequence except the last must all have the same length
+ * @author prussell
+ *
+ */
+public class FastaIndex {
+
+	/**
+	 * Extension added to the fasta file name for the index file
+	 */
+	public static final String EXTENSION = ".mmfai";
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private String fasta;
+	private Map<String, Entry> entries; // In fasta order
+
+	/**
+	 * One line of the index
+	 */
+	private static class Entry {
+		String name;
+		long length;
+		long offset; // Byte offset of the first base
+		int lineBases;
+		int lineWidth; // Bases plus line terminator
+		boolean sawShortLine; // Used while building: a line shorter than lineBases has been seen
+
+		Entry(String name, long offset) {
+			this.name = name;
+			this.offset = offset;
+		}
+	}
+
+	private FastaIndex(String fasta, List<Entry> entryList) {
+		this.fasta = fasta;
+		entries = new LinkedHashMap<String, Entry>();
+		for(Entry e : entryList) {
+			if(entries.put(e.name, e) != null) {
+				throw new IllegalArgumentException("Duplicate sequence name in fasta file " + fasta + ": " + e.name);
+			}
+		}
+	}
+
+	/**
+	 * Get the index for a fasta file
+	 * An index file written by main() is used if it is up to date; otherwise the fasta is scanned and the
+	 * index is kept in memory only
+	 * @param fasta Fasta file
+	 * @return The index
+	 */
+	public static FastaIndex load(String fasta) {
+		File fastaFile = new File(fasta);
+		File indexFile = new File(fasta + EXTENSION);
+		try {
+			if(indexFile.exists() && indexFile.lastModified() >= fastaFile.lastModified()) {
+				FastaIndex rtrn = new FastaIndex(fasta, read(indexFile));
+				if(rtrn.namesMatchHeaders()) {
+					return rtrn;
+				}
+			}
+			return new FastaIndex(fasta, build(fasta));
+		} catch(IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+			return null;
+		}
+	}
+
+	/**
+	 * @return Sequence names in fasta order
+	 */
+	public List<String> getNames() {
+		return new ArrayList<String>(entries.keySet());
+	}
+
+	/**
+	 * @return Number of sequences
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @param name Sequence name
+	 * @return True iff the fasta contains the sequence
+	 */
+	public boolean contains(String name) {
+		return entries.containsKey(name);
+	}
+
+	/**
+	 * @param name Sequence name
+	 * @return Sequence length
+	 */
+	public int getLength(String name) {
+		return (int) getEntry(name).length;
+	}
+
+	/**
+	 * Read one sequence from the fasta file
+	 * @param name Sequence name
+	 * @return The sequence
+	 */
+	public Sequence getSequence(String name) {
+		return getSubSequence(name, 0, getLength(name));
+	}
+
+	/**
+	 * Read part of a sequence from the fasta file
+	 * @param name Sequence name
+	 * @param start Start position of subsequence
+	 * @param end Position after last position to include
+	 * @return The subsequence, named with the sequence name
+	 */
+	public Sequence getSubSequence(String name, int start, int end) {
+		Entry e = getEntry(name);
+		start = Math.max(start, 0);
+		end = (int) Math.min(end, e.length);
+		if(end <= start) {
+			return new Sequence(name, "");
+		}
+		long startOffset = byteOffset(e, start);
+		long endOffset = byteOffset(e, end - 1) + 1;
+		byte[] bytes = new byte[(int) (endOffset - startOffset)];
+		try {
+			RandomAccessFile raf = new RandomAccessFile(fasta, "r");
+			raf.seek(startOffset);
+			raf.readFully(bytes);
+			raf.close();
+		} catch(IOException ex) {
+			throw new IllegalStateException("Error reading fasta file " + fasta, ex);
+		}
+		char[] bases = new char[end - start];
+		int n = 0;
+		for(byte b : bytes) {
+			if(b != '\n' && b != '\r') {
+				bases[n++] = (char) b;
+			}
+		}
+		if(n != bases.length) {
+			throw new IllegalStateException("Fasta index does not match fasta file " + fasta + " for sequence " + name);
+		}
+		return new Sequence(name, new String(bases));
+	}
+
+	/**
+	 * Write the index with the samtools faidx columns
+	 * @param indexFile File to write
+	 * @throws IOException
+	 */
+	public void write(File indexFile) throws IOException {
+		FileWriter w = new FileWriter(indexFile);
+		for(Entry e : entries.values()) {
+			w.write(e.name + "\t" + e.length + "\t" + e.offset + "\t" + e.lineBases + "\t" + e.lineWidth + "\n");
+		}
+		w.close();
+	}
+
+	private Entry getEntry(String name) {
+		Entry e = entries.get(name);
+		if(e == null) {
+			throw new IllegalArgumentException("Sequence " + name + " is not in fasta file " + fasta);
+		}
+		return e;
+	}
+
+	private static long byteOffset(Entry e, long pos) {
+		if(e.lineBases == 0) return e.offset;
+		return e.offset + (pos / e.lineBases) * e.lineWidth + pos % e.lineBases;
+	}
+
+	/**
+	 * Check that the first name is the whole header line, so an index file that no longer matches the fasta is not used
+	 */
+	private boolean namesMatchHeaders() throws IOException {
+		if(entries.isEmpty()) return true;
+		Entry first = entries.values().iterator().next();
+		byte[] header = ('>' + first.name).getBytes();
+		if(first.offset < header.length + 1) return false;
+		byte[] bytes = new byte[(int) Math.min(first.offset, header.length + 3)];
+		RandomAccessFile raf = new RandomAccessFile(fasta, "r");
+		raf.seek(first.offset - bytes.length);
+		raf.readFully(bytes);
+		raf.close();
+		int end = bytes.length - 1; // Newline before the first base
+		if(bytes[end - 1] == '\r') end--;
+		if(end < header.length) return false;
+		for(int i = 0; i < header.length; i++) {
+			if(bytes[end - header.length + i] != header[i]) return false;
+		}
+		return end - header.length == 0 || bytes[end - header.length - 1] == '\n';
+	}
+
+	private static List<Entry> read(File indexFile) throws IOException {
+		List<Entry> rtrn = new ArrayList<Entry>();
+		BufferedReader r = new BufferedReader(new FileReader(indexFile));
+		LineTokenizer p = new LineTokenizer();
+		String line;
+		while((line = r.readLine()) != null) {
+			if(line.isEmpty()) continue;
+			if(p.tokenize(line, '\t') < 5) {
+				r.close();
+				throw new IllegalArgumentException("Invalid fasta index line in " + indexFile + ": " + line);
+			}
+			Entry e = new Entry(p.asString(0), p.asLong(2));
+			e.length = p.asLong(1);
+			e.lineBases = p.asInt(3);
+			e.lineWidth = p.asInt(4);
+			rtrn.add(e);
+		}
+		r.close();
+		return rtrn;
+	}
+
+	/**
+	 * Scan the fasta file and record the name, length and layout of each sequence
+	 */
+	private static List<Entry> build(String fasta) throws IOException {
+		System.out.println("Indexing fasta file " + fasta + "...");
+		List<Entry> rtrn = new ArrayList<Entry>();
+		InputStream in = new BufferedInputStream(new FileInputStream(fasta), BUFFER_SIZE);
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		boolean inHeader = false;
+		boolean lineStart = true;
+		Entry curr = null;
+		long pos = 0;
+		int lineBytes = 0;
+		int lineBases = 0;
+		int b;
+		while((b = in.read()) != -1) {
+			pos++;
+			if(lineStart && b == '>') {
+				if(curr != null) rtrn.add(checkLength(curr));
+				inHeader = true;
+				lineStart = false;
+				header.reset();
+				continue;
+			}
+			lineStart = b == '\n';
+			if(inHeader) {
+				if(b == '\n') {
+					String name = header.toString();
+					if(name.endsWith("\r")) name = name.substring(0, name.length() - 1);
+					curr = new Entry(name, pos);
+					inHeader = false;
+				} else {
+					header.write(b);
+				}
+				continue;
+			}
+			if(b == '\n') {
+				endLine(fasta, curr, lineBases, lineBytes + 1);
+				lineBytes = 0;
+				lineBases = 0;
+			} else {
+				lineBytes++;
+				if(b != '\r') lineBases++;
+			}
+		}
+		in.close();
+		if(inHeader) {
+			curr = new Entry(header.toString(), pos);
+		} else if(lineBytes > 0) {
+			// Last line has no newline, so its width says nothing about the line width
+			endLine(fasta, curr, lineBases, -1);
+		}
+		if(curr != null) rtrn.add(checkLength(curr));
+		System.out.println("Indexed " + rtrn.size() + " sequences.");
+		return rtrn;
+	}
+
+	private static void endLine(String fasta, Entry curr, int lineBases, int lineWidth) {
+		if(curr == null) {
+			if(lineBases == 0) return;
+			throw new IllegalArgumentException("Fasta file must start with a header line: " + fasta);
+		}
+		if(lineBases == 0) {
+			curr.sawShortLine = true;
+			return;
+		}
+		if(curr.lineBases == 0) {
+			curr.lineBases = lineBases;
+			curr.lineWidth = lineWidth < 0 ? lineBases : lineWidth;
+		} else if(curr.sawShortLine || lineBases > curr.lineBases || (lineWidth >= 0 && lineWidth - lineBases != curr.lineWidth - curr.lineBases)) {
+			throw new IllegalArgumentException("Lines of sequence " + curr.name + " in fasta file " + fasta + " have different lengths");
+		}
+		if(lineBases < curr.lineBases) {
+			curr.sawShortLine = true;
+		}
+		curr.length += lineBases;
+	}
+
+	private static Entry checkLength(Entry e) {
+		if(e.length > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Sequence is too long: " + e.name);
+		}
+		return e;
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		CommandLineParser p = new CommandLineParser();
+		p.setProgramDescription("Write the index of a fasta file next to it with extension " + EXTENSION + " so later runs don't scan the fasta. Names are whole header lines, so the file is not a samtools .fai");
+		p.addStringArg("-f", "Fasta file", true);
+		p.parse(args);
+		String fasta = p.getStringArg("-f");
+		String out = fasta + EXTENSION;
+		FastaIndex index = new FastaIndex(fasta, build(fasta));
+		index.write(new File(out));
+		System.out.println("Wrote index of " + index.size() + " sequences to " + out);
+
+	}
+
+}
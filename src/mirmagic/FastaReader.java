@@ -6,38 +6,87 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
  * Fasta file reader
+ * Iterates over the sequences in a fasta file one at a time, so only the current sequence is in memory
+ * Use FastaIndex to get sequence lengths or individual sequences without reading the whole file
  * @author prussell
  *
  */
-public class FastaReader {
-	
+public class FastaReader implements Iterator<Sequence> {
+
+	private String fileName;
+	private BufferedReader reader;
+	private String nextHeader; // Header line of the next sequence, or null if there are no more sequences
+
+	/**
+	 * Open a fasta file for iteration
+	 * @param fileName Fasta file
+	 * @throws IOException
+	 */
+	public FastaReader(String fileName) throws IOException {
+		this.fileName = fileName;
+		reader = new BufferedReader(new FileReader(fileName));
+		String line = reader.readLine();
+		while(line != null && line.isEmpty()) {
+			line = reader.readLine();
+		}
+		if(line != null && !line.startsWith(">")) {
+			reader.close();
+			throw new IllegalArgumentException("Fasta file must start with a header line: " + fileName);
+		}
+		nextHeader = line;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return nextHeader != null;
+	}
+
+	@Override
+	public Sequence next() {
+		if(nextHeader == null) {
+			throw new NoSuchElementException();
+		}
+		String name = nextHeader.substring(1);
+		StringBuilder seq = new StringBuilder();
+		try {
+			String line = reader.readLine();
+			while(line != null && !line.startsWith(">")) {
+				seq.append(line);
+				line = reader.readLine();
+			}
+			nextHeader = line;
+		} catch(IOException e) {
+			throw new IllegalStateException("Error reading fasta file " + fileName, e);
+		}
+		return new Sequence(name, seq.toString());
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Close the reader
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		reader.close();
+	}
 
 	public static Collection<Sequence> readFromFile(String fileName) {
 		System.out.println("Reading sequences from fasta file " + fileName + "...");
 		Collection<Sequence> rtrn = new ArrayList<Sequence>();
 		try {
-			BufferedReader reader = new BufferedReader(new FileReader(fileName));
-			boolean started = false;
-			String currSeqID = null;
-			StringBuilder currSeq = null;
-			while(reader.ready()) {
-				String line = reader.readLine();
-				if(line.startsWith(">")) {
-					if(started) {
-						rtrn.add(new Sequence(currSeqID, currSeq.toString()));
-					}
-					currSeqID = line.substring(1);
-					currSeq = new StringBuilder();
-					continue;
-				}
-				currSeq.append(line);
-				started = true;
+			FastaReader reader = new FastaReader(fileName);
+			while(reader.hasNext()) {
+				rtrn.add(reader.next());
 			}
-			Sequence lastSeq = new Sequence(currSeqID, currSeq.toString());
-			rtrn.add(lastSeq);
 			reader.close();
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
@@ -49,5 +98,5 @@ public class FastaReader {
 		System.out.println("Got " + rtrn.size() + " sequences.");
 		return rtrn;
 	}
-	
+
 }
@@ -1,19 +1,42 @@
 package mirmagic;
 
 import java.io.*;
+import java.nio.charset.Charset;
 import java.util.*;
 
 
 /**
  * Fastq file reader
+ * Files, pipes and standard input are read as bytes so the byte offset of the next record is known,
+ * e.g. to resume reading a file from a checkpoint
+ * Reading can be limited to a shard of the records: those before an end offset, and/or those whose index
+ * in the file modulo a number of shards is a shard index
  * @author prussell
  *
  */
 public class FastqParser implements Iterator<FastqSequence>{
 	Collection<FastqSequence> sequences;
 	File fastqFile;
-	BufferedReader reader;
+	BufferedReader reader; // Reader lines are read from if started with a reader, otherwise null
 	String nextLine = null;
+	private InputStream in = null; // Stream lines are read from if not started with a reader
+	private byte[] buf = new byte[BUFFER_SIZE];
+	private int bufPos = 0;
+	private int bufLen = 0;
+	private byte[] lineBuf = new byte[256]; // Line that runs across the end of the buffer
+	private long offset = 0; // Byte offset in the input of the next unread byte
+	private long nextRecordOffset = 0; // Byte offset in the input of the next record
+	private long recordIndex = 0; // Index in the input of the next record
+	private long endOffset = Long.MAX_VALUE; // No records are returned that start at or after this offset
+	private int shardIndex = 0; // Only records whose index modulo numShards is shardIndex are returned
+	private int numShards = 1;
+	private static final int MAX_LINES_TO_RECORD_START = 12;
+	
+	/**
+	 * File name meaning standard input
+	 */
+	public static final String STDIN = "-";
+	private static final int BUFFER_SIZE = 1 << 16;
 	
 	/**
 	 * Empty constructor. Call before setting the file.
@@ -28,9 +51,216 @@ public class FastqParser implements Iterator<FastqSequence>{
 	 * @throws IOException
 	 */
 	public void start(File fastqParser) throws IOException {
+		start(fastqParser, 0);
+	}
+	
+	/**
+	 * Set file and start reader at a byte offset, which must be the start of a record
+	 * @param fastqParser The fastq file; must be a regular file if the offset is not zero
+	 * @param startOffset Byte offset of the first record to read, e.g. from getOffset()
+	 * @throws IOException
+	 */
+	public void start(File fastqParser, long startOffset) throws IOException {
+		start(fastqParser, startOffset, 0);
+	}
+	
+	/**
+	 * Set file and start reader at a byte offset, which must be the start of a record
+	 * @param fastqParser The fastq file; must be a regular file if the offset is not zero
+	 * @param startOffset Byte offset of the first record to read, e.g. from getOffset()
+	 * @param startRecordIndex Index in the file of the record at the offset, e.g. from getRecordIndex()
+	 * @throws IOException
+	 */
+	public void start(File fastqParser, long startOffset, long startRecordIndex) throws IOException {
 		this.fastqFile = fastqParser;
-		reader=new BufferedReader(new InputStreamReader(new FileInputStream(fastqFile)));
-		nextLine = reader.readLine();
+		this.recordIndex = startRecordIndex;
+		FileInputStream fis = new FileInputStream(fastqFile);
+		if(startOffset > 0) {
+			fis.getChannel().position(startOffset);
+		}
+		start(fis, startOffset);
+	}
+	
+	/**
+	 * Start reading from a file, a named pipe, or standard input if the name is STDIN
+	 * @param fastq File name, or STDIN to read standard input
+	 * @throws IOException
+	 */
+	public void start(String fastq) throws IOException {
+		if(isStdin(fastq)) {
+			start(System.in, 0);
+		} else {
+			start(new File(fastq));
+		}
+	}
+	
+	private void start(InputStream stream, long startOffset) throws IOException {
+		in = stream;
+		reader = null;
+		offset = startOffset;
+		nextRecordOffset = offset;
+		nextLine = readLine();
+	}
+	
+	/**
+	 * @return Byte offset in the input of the next record to be returned by next(), or of the end of the input
+	 * if there are no more records
+	 */
+	public long getOffset() {
+		if(in == null) {
+			throw new IllegalStateException("Byte offsets are not known when reading from a reader");
+		}
+		return nextLine == null ? offset : nextRecordOffset;
+	}
+	
+	/**
+	 * @return Index in the input of the record at getOffset(), counting from the record the reader started at
+	 */
+	public long getRecordIndex() {
+		return recordIndex;
+	}
+	
+	/**
+	 * Stop before the first record that starts at or after an offset
+	 * @param end Byte offset, e.g. from findRecordStart()
+	 */
+	public void setEndOffset(long end) {
+		this.endOffset = end;
+	}
+	
+	/**
+	 * Only return the records whose index in the input modulo the number of shards is the shard index
+	 * @param index Shard index, from 0
+	 * @param count Number of shards
+	 * @throws IOException
+	 */
+	public void setShard(int index, int count) throws IOException {
+		if(count < 1 || index < 0 || index >= count) {
+			throw new IllegalArgumentException("Invalid shard " + index + " of " + count);
+		}
+		shardIndex = index;
+		numShards = count;
+		skipToShard();
+	}
+	
+	/**
+	 * Skip the records that are not in the shard
+	 */
+	private void skipToShard() throws IOException {
+		while(nextLine != null && recordIndex % numShards != shardIndex) {
+			for(int i = 0; i < 3; i++) {
+				readLine();
+			}
+			recordIndex++;
+			nextRecordOffset = offset;
+			nextLine = readLine();
+		}
+	}
+	
+	/**
+	 * Find the first record that starts at or after a byte offset in a fastq file
+	 * A record starts with a line beginning with @ that is followed two lines later by a line beginning
+	 * with +; a quality line beginning with @ is followed two lines later by a sequence line, so it is
+	 * never taken for a record start
+	 * @param fastq Fastq file
+	 * @param offset Byte offset
+	 * @return Offset of the start of the first record at or after the offset, or the file length if there is none
+	 * @throws IOException
+	 */
+	public static long findRecordStart(File fastq, long offset) throws IOException {
+		if(offset <= 0) {
+			return 0;
+		}
+		FastqParser p = new FastqParser();
+		FileInputStream fis = new FileInputStream(fastq);
+		fis.getChannel().position(offset - 1);
+		p.in = fis;
+		p.offset = offset - 1;
+		// Finish the line containing the byte before the offset, so the next line starts at or after the offset
+		p.readLine();
+		String[] lines = new String[3];
+		long[] starts = new long[3];
+		for(int i = 0; i < MAX_LINES_TO_RECORD_START; i++) {
+			long start = p.offset;
+			String line = p.readLine();
+			if(line == null) {
+				fis.close();
+				return start;
+			}
+			lines[i % 3] = line;
+			starts[i % 3] = start;
+			String first = lines[(i + 1) % 3];
+			if(i >= 2 && first.startsWith("@") && line.startsWith("+")) {
+				fis.close();
+				return starts[(i + 1) % 3];
+			}
+		}
+		fis.close();
+		throw new IllegalArgumentException("No fastq record starts within " + MAX_LINES_TO_RECORD_START + " lines of offset " + offset + " in " + fastq);
+	}
+	
+	/**
+	 * Read the next line from the reader or stream, without the line terminator
+	 * A line can end with \n or \r\n
+	 * @return The line, or null at the end of the input
+	 * @throws IOException
+	 */
+	private String readLine() throws IOException {
+		if(reader != null) {
+			return reader.readLine();
+		}
+		int lineLen = 0;
+		while(true) {
+			if(bufPos == bufLen) {
+				bufLen = in.read(buf, 0, buf.length);
+				bufPos = 0;
+				if(bufLen <= 0) {
+					bufLen = 0;
+					return lineLen == 0 ? null : decode(lineBuf, 0, lineLen);
+				}
+			}
+			int start = bufPos;
+			while(bufPos < bufLen && buf[bufPos] != '\n') {
+				bufPos++;
+			}
+			if(bufPos < bufLen) {
+				// Found the end of the line
+				int end = bufPos;
+				bufPos++;
+				offset += bufPos - start;
+				if(lineLen == 0) {
+					return decode(buf, start, end - start);
+				}
+				lineLen = appendToLine(lineLen, start, end);
+				return decode(lineBuf, 0, lineLen);
+			}
+			offset += bufLen - start;
+			lineLen = appendToLine(lineLen, start, bufLen);
+		}
+	}
+	
+	private int appendToLine(int lineLen, int start, int end) {
+		int len = end - start;
+		if(lineLen + len > lineBuf.length) {
+			lineBuf = Arrays.copyOf(lineBuf, Math.max(2 * lineBuf.length, lineLen + len));
+		}
+		System.arraycopy(buf, start, lineBuf, lineLen, len);
+		return lineLen + len;
+	}
+	
+	private static String decode(byte[] b, int start, int len) {
+		if(len > 0 && b[start + len - 1] == '\r') {
+			len--;
+		}
+		return new String(b, start, len, Charset.defaultCharset());
+	}
+	
+	/**
+	 * @param fastq File name
+	 * @return True iff the name means standard input
+	 */
+	public static boolean isStdin(String fastq) {
+		return fastq.equals(STDIN);
 	}
 	
 	/**
@@ -40,11 +270,12 @@ public class FastqParser implements Iterator<FastqSequence>{
 	 */
 	public void start (BufferedReader br) throws IOException {
 		reader=br;
+		in = null;
 		nextLine = reader.readLine();
 	}
 	
 	public boolean hasNext() {
-		return nextLine != null;
+		return nextLine != null && nextRecordOffset < endOffset;
 	}
 
 	private void exitIfBlank(String line) {
@@ -61,15 +292,18 @@ public class FastqParser implements Iterator<FastqSequence>{
 	        if (nextLine  != null) {
         		String firstLine=nextLine;
         		exitIfBlank(firstLine);
-        		String secondLine=reader.readLine();
+        		String secondLine=readLine();
         		exitIfBlank(secondLine);
-				String thirdLine=reader.readLine();
+				String thirdLine=readLine();
         		exitIfBlank(thirdLine);
-        		String fourthLine=reader.readLine();
+        		String fourthLine=readLine();
         		exitIfBlank(fourthLine);
         		seq=new FastqSequence(firstLine, secondLine, thirdLine, fourthLine);
 	        }
-	        nextLine = reader.readLine() ;
+	        recordIndex++;
+	        nextRecordOffset = offset;
+	        nextLine = readLine() ;
+	        skipToShard();
 
 		}catch(Exception ex){ 
 			System.err.println("Exception thrown while reading fastq file");
@@ -83,7 +317,11 @@ public class FastqParser implements Iterator<FastqSequence>{
 	 * @throws IOException
 	 */
 	public void close() throws IOException{
-		reader.close();
+		if(reader != null) {
+			reader.close();
+		} else {
+			in.close();
+		}
 	}
 
 	public void remove() {}
@@ -2,11 +2,22 @@ package mirmagic;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.nio.CharBuffer;
 
+/**
+ * A fastq record
+ * The sequence and quality strings are backing buffers with start and end offsets, so trimming only moves
+ * the offsets; the trimmed strings are copied the first time they are asked for
+ * @author prussell
+ *
+ */
 public class FastqSequence {
 
-	private String sequence;
-	private String quality;
+	private String sequence; // Backing sequence string
+	private String quality; // Backing quality string
+	private int start; // Offset of the first base of the record in the backing strings
+	private int end; // Offset after the last base of the record in the backing strings
+	private CharSequence view; // Cached by getSequenceView(), cleared when the offsets change
 	String name;
 	String description;
 	
@@ -19,20 +30,88 @@ public class FastqSequence {
 	public FastqSequence(String name, String sequence, String description, String quality){
 		this.sequence=sequence;
 		this.quality=quality;
+		this.start=0;
+		this.end=sequence.length();
 		this.name=name;
 		removeAtSymbolFromName();
 		this.description=description;
 	}
 	
+	/**
+	 * View of part of another record, sharing its backing strings
+	 * @param other Record to view
+	 * @param start Start offset relative to the other record
+	 * @param end End offset relative to the other record
+	 */
+	private FastqSequence(FastqSequence other, int start, int end) {
+		if(start < 0 || end > other.getLength() || start > end) {
+			throw new StringIndexOutOfBoundsException("Invalid range " + start + "-" + end + " for read of length " + other.getLength());
+		}
+		this.sequence=other.sequence;
+		this.quality=other.quality;
+		this.start=other.start + start;
+		this.end=other.start + end;
+		this.name=other.name;
+		this.description=other.description;
+	}
+	
 	/**
 	 * @return Read name
 	 */
 	public String getName(){return this.name;}
 	
 	/**
-	 * @return Read sequence
+	 * @return Read sequence; copies the bases the first time if the record has been trimmed
+	 */
+	public String getSequence(){
+		materialize();
+		return this.sequence;
+	}
+	
+	/**
+	 * @return Read sequence without copying, for reading the bases once; the same view is returned until the record is trimmed
+	 */
+	public CharSequence getSequenceView(){
+		if(view == null) {
+			view = isWholeBuffer() ? sequence : CharBuffer.wrap(sequence, start, end);
+		}
+		return view;
+	}
+	
+	/**
+	 * @param i Position on read
+	 * @return The base at the position
+	 */
+	public char charAt(int i){
+		if(i < 0 || i >= end - start) {
+			throw new StringIndexOutOfBoundsException(i);
+		}
+		return sequence.charAt(start + i);
+	}
+	
+	/**
+	 * @return Quality string; copies it the first time if the record has been trimmed
 	 */
-	public String getSequence(){return this.sequence;}
+	public String getQuality(){
+		materialize();
+		return this.quality;
+	}
+	
+	private boolean isWholeBuffer() {
+		return start == 0 && end == sequence.length();
+	}
+	
+	/**
+	 * Replace the backing strings with copies of the trimmed range
+	 */
+	private void materialize() {
+		if(isWholeBuffer()) return;
+		sequence=sequence.substring(start, end);
+		quality=quality.substring(start, end);
+		start=0;
+		end=sequence.length();
+		view=null;
+	}
 	
 	/**
 	 * @return Description string
@@ -53,7 +132,7 @@ public class FastqSequence {
 	
 	@Override
 	public String toString(){
-		String rtrn=name+"\n"+sequence+"\n"+description+"\n"+quality;
+		String rtrn=name+"\n"+getSequence()+"\n"+description+"\n"+getQuality();
 		return rtrn;
 	}
 	
@@ -65,11 +144,11 @@ public class FastqSequence {
 	public void write(BufferedWriter bw) throws IOException{
 		bw.write( (name.startsWith("@") ) ? name : "@" + name );  // TODO: Fix, store name without @, add @ only for writing
 		bw.newLine();
-		bw.write(sequence);
+		bw.write(sequence, start, end - start);
 		bw.newLine();
 		bw.write(description.startsWith("+") ? description : "+" + description); // TODO: Fix, store description without +, add + only for writing
 		bw.newLine();
-		bw.write(quality);
+		bw.write(quality, start, end - start);
 		bw.newLine();
 	}
 	
@@ -85,16 +164,20 @@ public class FastqSequence {
 	 * @return New record with poly base removed from end
 	 */
 	public FastqSequence trimEnds(char letter){
+		return new FastqSequence(this, 0, trimEndsLength(letter));
+	}
+	
+	/**
+	 * @param letter The nucleotide
+	 * @return Length of the read after trimEnds(letter)
+	 */
+	private int trimEndsLength(char letter){
 		//get the last occurrence of the specified letter starting from the end and remove it from the sequence
-		char[] chars=sequence.toCharArray();
-		int endIndex=chars.length-1;
-		for(int i=chars.length-1; i>=0; i--){
-			if(chars[i]!=letter){endIndex=i; break;}
+		int endIndex=getLength()-1;
+		for(int i=end-1; i>=start; i--){
+			if(sequence.charAt(i)!=letter){endIndex=i-start; break;}
 		}
-		String newSequence=sequence.substring(0, endIndex+1);
-		String newQuality=quality.substring(0,endIndex+1);
-		FastqSequence newSeq=new FastqSequence(name, newSequence, description, newQuality);
-		return newSeq;
+		return endIndex+1;
 	}
 	
 	/**
@@ -103,11 +186,11 @@ public class FastqSequence {
 	 * @return
 	 */
 	public FastqSequence trimEndBases(int numOfBasesToTrim){
-		String trimmedSequence = sequence.substring(sequence.length() - numOfBasesToTrim);
-		String trimmedQual     = quality.substring(quality.length() - numOfBasesToTrim);
-		sequence=sequence.substring(0, sequence.length() - numOfBasesToTrim);
-		quality=quality.substring(0, quality.length() - numOfBasesToTrim);
-		return new FastqSequence(name, trimmedSequence, description, trimmedQual);
+		int len=getLength();
+		FastqSequence trimmed=new FastqSequence(this, len - numOfBasesToTrim, len);
+		end-=numOfBasesToTrim;
+		view=null;
+		return trimmed;
 	}
 	
 	/**
@@ -116,11 +199,10 @@ public class FastqSequence {
 	 * @return
 	 */
 	public FastqSequence trimStartBases(int numOfBasesToTrim){
-		String trimmedSequence = sequence.substring(0, numOfBasesToTrim);
-		String trimmedQual     = quality.substring(0, numOfBasesToTrim);
-		sequence=sequence.substring(numOfBasesToTrim);
-		quality=quality.substring(numOfBasesToTrim);
-		return new FastqSequence(name, trimmedSequence, description, trimmedQual);
+		FastqSequence trimmed=new FastqSequence(this, 0, numOfBasesToTrim);
+		start+=numOfBasesToTrim;
+		view=null;
+		return trimmed;
 	}
 	
 	/**
@@ -129,16 +211,19 @@ public class FastqSequence {
 	 * @return New record with poly base removed from beginning
 	 */
 	public FastqSequence trimBeginning(char letter){
-		//get the last occurrence of the specified letter starting from the end and remove it from the sequence
-		char[] chars=sequence.toCharArray();
-		int startIndex=0;
-		for(int i=0; i<chars.length; i++){
-			if(chars[i]!=letter){startIndex=i; break;}
+		return new FastqSequence(this, trimBeginningStart(letter), getLength());
+	}
+	
+	/**
+	 * @param letter The nucleotide
+	 * @return Start position of the read after trimBeginning(letter)
+	 */
+	private int trimBeginningStart(char letter){
+		//get the first occurrence of a different letter and remove everything before it
+		for(int i=start; i<end; i++){
+			if(sequence.charAt(i)!=letter){return i-start;}
 		}
-		String newSequence=sequence.substring(startIndex, chars.length);
-		String newQuality=quality.substring(startIndex,chars.length);
-		FastqSequence newSeq=new FastqSequence(name, newSequence, description, newQuality);
-		return newSeq;
+		return 0;
 	}
 	
 	/**
@@ -147,13 +232,7 @@ public class FastqSequence {
 	 * @return New record with beginning removed
 	 */
 	public FastqSequence trimFirstNBPs(int n){
-		char[] chars=sequence.toCharArray();
-		int startIndex=n;
-		
-		String newSequence=sequence.substring(startIndex, chars.length);
-		String newQuality=quality.substring(startIndex,chars.length);
-		FastqSequence newSeq=new FastqSequence(name, newSequence, description, newQuality);
-		return newSeq;
+		return new FastqSequence(this, n, getLength());
 	}
 	
 	/**
@@ -162,20 +241,23 @@ public class FastqSequence {
 	 * @return First bases of read sequence
 	 */
 	public String getFirstNBPs(int n){
-		return sequence.substring(0, n);
+		if(n > getLength()) {
+			throw new StringIndexOutOfBoundsException(n);
+		}
+		return sequence.substring(start, start + n);
 	}
 	
 	/**
 	 * @return Read length
 	 */
-	public int getLength(){return sequence.toCharArray().length;}
+	public int getLength(){return end - start;}
 
 	/**
 	 * @return Two line fasta record (name, sequence)
 	 */
 	public String toFasta() {
 		String rtrn="";
-		rtrn+=">"+name+"\n"+sequence+"\n";
+		rtrn+=">"+name+"\n"+getSequence()+"\n";
 		return rtrn;
 	}
 
@@ -187,7 +269,7 @@ public class FastqSequence {
 	public String toFasta(int readNum) {
 		String rtrn="";
 		String name="seq."+readNum+"a";
-		rtrn+=">"+name+"\n"+sequence+"\n";
+		rtrn+=">"+name+"\n"+getSequence()+"\n";
 		return rtrn;
 	}
 
@@ -198,23 +280,29 @@ public class FastqSequence {
 		return this.toString();
 	}
 
-	private boolean isPolyA(String seq) {
+	/**
+	 * @param from Start position on read
+	 * @param to Position after last position to check
+	 * @return True iff the range is a homopolymer of A or T
+	 */
+	private boolean isPolyA(int from, int to) {
 		//if sequence is a homopolymer of A or T
-		char[] bases=seq.toCharArray();
 		int aCount=0;
 		int tCount=0;
-		for(int i=0; i<bases.length; i++){
-			if(bases[i]=='A' || bases[i]=='a'){aCount++;}
-			if(bases[i]=='T' || bases[i]=='t'){tCount++;}
+		for(int i=start+from; i<start+to; i++){
+			char c=sequence.charAt(i);
+			if(c=='A' || c=='a'){aCount++;}
+			if(c=='T' || c=='t'){tCount++;}
 		}
-		if(aCount==bases.length || tCount==bases.length){return true;}
+		int len=to-from;
+		if(aCount==len || tCount==len){return true;}
 		return false;
 	}
 
 	/**
 	 * @return True iff read is all A's or all T's
 	 */
-	public boolean isPolyA(){return isPolyA(this.sequence);}
+	public boolean isPolyA(){return isPolyA(0, getLength());}
 	
 	/**
 	 * Check if first or last part of read is all A's or all T's
@@ -222,40 +310,34 @@ public class FastqSequence {
 	 * @return True iff first n bases or last n bases are all A's or all T's
 	 */
 	public boolean isPartialPolyA(int polyN) {
-		String lastNBps=getLastBps(sequence, polyN);
-		String firstNBps=getFirstBps(sequence, polyN);
-		
-		if(isPolyA(lastNBps) || isPolyA(firstNBps)){return true;}
+		int len=getLength();
+		if(polyN < 0 || polyN > len) {
+			throw new StringIndexOutOfBoundsException(polyN);
+		}
+		if(isPolyA(len-polyN, len) || isPolyA(0, polyN)){return true;}
 		return false;
 	}
-	
-	private String getLastBps(String sequence, int num){
-		return sequence.substring(sequence.toCharArray().length-num);
-	}
-	
-	private String getFirstBps(String sequence, int num){
-		return sequence.substring(0, num);
-	}
 
 	/**
 	 * @return New record with runs of A's or T's removed from beginning and end
 	 */
 	public FastqSequence trimPolyA() {
-		FastqSequence s1=this.trimBeginning('T');
-		FastqSequence s2=this.trimBeginning('A');
-		FastqSequence s3=this.trimEnds('A');
-		FastqSequence s4=this.trimEnds('T');
+		// Compare the four trimmed lengths and only make a view of the shortest
+		int len=getLength();
+		int l1=len-trimBeginningStart('T');
+		int l2=len-trimBeginningStart('A');
+		int l3=trimEndsLength('A');
+		int l4=trimEndsLength('T');
 		
-		int minSize=s1.getLength();
-		minSize=Math.min(minSize, s2.getLength());
-		minSize=Math.min(minSize, s3.getLength());
-		minSize=Math.min(minSize, s4.getLength());
+		int minSize=l1;
+		minSize=Math.min(minSize, l2);
+		minSize=Math.min(minSize, l3);
+		minSize=Math.min(minSize, l4);
 		
-		if(s1.getLength()==minSize){return s1;}
-		if(s2.getLength()==minSize){return s2;}
-		if(s3.getLength()==minSize){return s3;}
-		if(s4.getLength()==minSize){return s4;}
-		return s1;
+		if(l1==minSize){return trimBeginning('T');}
+		if(l2==minSize){return trimBeginning('A');}
+		if(l3==minSize){return trimEnds('A');}
+		return trimEnds('T');
 	}
 
 	
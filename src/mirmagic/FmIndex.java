@@ -0,0 +1,329 @@
+package mirmagic;
+
+import java.util.Arrays;
+
+/**
+ * Target index based on the Burrows-Wheeler transform of the concatenated targets (FM-index)
+ * Memory while searching is about 2 bytes per target base regardless of k: the BWT, occurrence counts sampled
+ * every 64 positions, and the suffix array sampled every 32 text positions
+ * Building needs about 24 bytes per target base for a short time, because finish() sorts the full suffix
+ * array by prefix doubling before sampling it
+ * Each target is preceded and followed by a separator, so that a target shorter than maxk matches a
+ * query exactly where the pattern separator + query subsequence + separator occurs in the text
+ * Matches are found by backward search from each end position of the query, extending the pattern
+ * one base to the left at a time, so all short target lengths are covered by a single walk
+ * N's in the query follow every branch and N's in targets match any query base
+ * @author prussell
+ *
+ */
+public class FmIndex implements TargetIndex {
+
+	private static final byte TERMINATOR = 0; // Unique last character of the text
+	private static final byte SEPARATOR = 1;
+	private static final byte OFFSET = 2; // Added to base codes in the text to make room for the terminator and separator
+	private static final byte CODE_N = BaseCodes.N + OFFSET;
+	private static final int SIGMA = 7;
+	private static final int OCC_INTERVAL = 64; // Positions between occurrence count checkpoints
+	private static final int OCC_SHIFT = 6;
+	private static final int SA_SAMPLE_INTERVAL = 32; // Text positions between suffix array samples
+
+	private int mink;
+	private int maxk;
+	private boolean[] shortLength; // Whether any target shorter than maxk has each length
+	private boolean hasLongTargets;
+	private boolean targetsHaveN; // Whether the N branch needs to be followed for query bases
+
+	// Build state, discarded by finish()
+	private byte[] text = new byte[1024];
+	private int textLen = 0;
+
+	private int[] segmentStart = new int[16]; // Text position of the first base of each target
+	private int[] segmentTarget = new int[16]; // Target ID of each target
+	private int numSegments = 0;
+
+	private int n; // Text length
+	private byte[] bwt;
+	private int[] charStart = new int[SIGMA + 1]; // Number of characters in the text smaller than each character
+	private int[] occ; // Occurrences of each character in the BWT before each checkpoint
+	private long[] sampledRows; // Bit set of rows whose suffix array value is sampled
+	private int[] sampledRowRank; // Number of sampled rows before each word of sampledRows
+	private int[] samples; // Suffix array values of sampled rows in row order
+
+	/**
+	 * @param mink Minimum kmer length of any target
+	 * @param maxk Maximum kmer length of any target
+	 */
+	public FmIndex(int mink, int maxk) {
+		if(mink < 1 || mink > maxk) {
+			throw new IllegalArgumentException("Invalid kmer lengths: " + mink + ", " + maxk);
+		}
+		this.mink = mink;
+		this.maxk = maxk;
+		shortLength = new boolean[maxk];
+		text[textLen++] = SEPARATOR;
+	}
+
+	@Override
+	public void addTarget(int targetId, String bases, int k) {
+		if(bwt != null) {
+			throw new IllegalStateException("Index is already finished");
+		}
+		int len = bases.length();
+		if(k < mink || k > maxk || (k < maxk && k != len)) {
+			throw new IllegalArgumentException("Kmer length must be " + maxk + " or the full length of a shorter target: " + k);
+		}
+		if(k < maxk) shortLength[k] = true;
+		else hasLongTargets = true;
+		if((long) textLen + len + 2 > Integer.MAX_VALUE - 8) {
+			throw new IllegalStateException("Too many target bases for FM-index");
+		}
+		if(numSegments == segmentStart.length) {
+			segmentStart = Arrays.copyOf(segmentStart, 2 * numSegments);
+			segmentTarget = Arrays.copyOf(segmentTarget, 2 * numSegments);
+		}
+		segmentStart[numSegments] = textLen;
+		segmentTarget[numSegments] = targetId;
+		numSegments++;
+		if(textLen + len + 2 > text.length) {
+			text = Arrays.copyOf(text, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(textLen + len + 2, 2L * text.length)));
+		}
+		byte[] codes = BaseCodes.encode(bases);
+		for(int i = 0; i < len; i++) {
+			byte c = (byte) (codes[i] + OFFSET);
+			if(c == CODE_N) targetsHaveN = true;
+			text[textLen++] = c;
+		}
+		text[textLen++] = SEPARATOR;
+	}
+
+	@Override
+	public void finish() {
+		text[textLen++] = TERMINATOR;
+		n = textLen;
+		segmentStart = Arrays.copyOf(segmentStart, numSegments);
+		segmentTarget = Arrays.copyOf(segmentTarget, numSegments);
+		int[] sa = suffixArray(text, n);
+
+		// BWT and character counts
+		bwt = new byte[n];
+		int[] counts = new int[SIGMA];
+		for(int i = 0; i < n; i++) {
+			int pos = sa[i] == 0 ? n - 1 : sa[i] - 1;
+			bwt[i] = text[pos];
+			counts[text[i]]++;
+		}
+		for(int c = 0; c < SIGMA; c++) {
+			charStart[c + 1] = charStart[c] + counts[c];
+		}
+		text = null;
+
+		// Occurrence checkpoints
+		occ = new int[((n >> OCC_SHIFT) + 1) * SIGMA];
+		int[] running = new int[SIGMA];
+		for(int i = 0; i < n; i++) {
+			if((i & (OCC_INTERVAL - 1)) == 0) {
+				System.arraycopy(running, 0, occ, (i >> OCC_SHIFT) * SIGMA, SIGMA);
+			}
+			running[bwt[i]]++;
+		}
+		if((n & (OCC_INTERVAL - 1)) == 0) {
+			System.arraycopy(running, 0, occ, (n >> OCC_SHIFT) * SIGMA, SIGMA);
+		}
+
+		// Sampled suffix array
+		sampledRows = new long[(n >> 6) + 1];
+		sampledRowRank = new int[sampledRows.length];
+		int numSamples = 0;
+		for(int i = 0; i < n; i++) {
+			if(sa[i] % SA_SAMPLE_INTERVAL == 0) {
+				sampledRows[i >> 6] |= 1L << (i & 63);
+				numSamples++;
+			}
+		}
+		samples = new int[numSamples];
+		int rank = 0;
+		for(int w = 0; w < sampledRows.length; w++) {
+			sampledRowRank[w] = rank;
+			rank += Long.bitCount(sampledRows[w]);
+		}
+		int s = 0;
+		for(int i = 0; i < n; i++) {
+			if(sa[i] % SA_SAMPLE_INTERVAL == 0) samples[s++] = sa[i];
+		}
+	}
+
+	@Override
+	public void search(byte[] query, int length, MatchVisitor visitor) {
+		for(int end = length; end >= mink; end--) {
+			// Targets shorter than maxk: pattern is separator, query bases ending here, separator
+			searchShort(query, end, end, charStart[SEPARATOR], charStart[SEPARATOR + 1], visitor);
+			// Longer targets: maxk query bases ending here
+			if(hasLongTargets && end >= maxk) {
+				searchLong(query, end, end, 0, n, visitor);
+			}
+		}
+	}
+
+	@Override
+	public long size() {
+		return n;
+	}
+
+	/**
+	 * Extend a pattern ending with a separator one query base to the left at a time, reporting full length matches to short targets
+	 * @param codes Query base codes
+	 * @param end Query position after the last base in the pattern
+	 * @param start Query position of the first base in the pattern
+	 * @param lo First row matching the pattern
+	 * @param hi Row after the last row matching the pattern
+	 * @param visitor Visitor to receive matches
+	 */
+	private void searchShort(byte[] codes, int end, int start, int lo, int hi, MatchVisitor visitor) {
+		int len = end - start;
+		if(len >= mink && shortLength[len]) {
+			int targetLo = lf(SEPARATOR, lo);
+			int targetHi = lf(SEPARATOR, hi);
+			for(int row = targetLo; row < targetHi; row++) {
+				report(locate(row) + 1, start, len, visitor);
+			}
+		}
+		if(len == maxk - 1 || start == 0) return;
+		extend(codes, end, start, lo, hi, false, visitor);
+	}
+
+	/**
+	 * Extend a pattern one query base to the left at a time, reporting matches of length maxk
+	 * @param codes Query base codes
+	 * @param end Query position after the last base in the pattern
+	 * @param start Query position of the first base in the pattern
+	 * @param lo First row matching the pattern
+	 * @param hi Row after the last row matching the pattern
+	 * @param visitor Visitor to receive matches
+	 */
+	private void searchLong(byte[] codes, int end, int start, int lo, int hi, MatchVisitor visitor) {
+		if(end - start == maxk) {
+			for(int row = lo; row < hi; row++) {
+				report(locate(row), start, maxk, visitor);
+			}
+			return;
+		}
+		extend(codes, end, start, lo, hi, true, visitor);
+	}
+
+	/**
+	 * Extend the pattern with the query base before start, following N's in the query or targets
+	 */
+	private void extend(byte[] codes, int end, int start, int lo, int hi, boolean isLong, MatchVisitor visitor) {
+		byte c = (byte) (codes[start - 1] + OFFSET);
+		if(c == CODE_N) {
+			for(byte b = SEPARATOR + 1; b <= CODE_N; b++) {
+				extendWith(codes, end, start, lo, hi, b, isLong, visitor);
+			}
+		} else {
+			extendWith(codes, end, start, lo, hi, c, isLong, visitor);
+			if(targetsHaveN) {
+				extendWith(codes, end, start, lo, hi, CODE_N, isLong, visitor);
+			}
+		}
+	}
+
+	private void extendWith(byte[] codes, int end, int start, int lo, int hi, byte c, boolean isLong, MatchVisitor visitor) {
+		int newLo = lf(c, lo);
+		int newHi = lf(c, hi);
+		if(newLo >= newHi) return;
+		if(isLong) searchLong(codes, end, start - 1, newLo, newHi, visitor);
+		else searchShort(codes, end, start - 1, newLo, newHi, visitor);
+	}
+
+	private void report(int textPos, int queryPos, int k, MatchVisitor visitor) {
+		int segment = Arrays.binarySearch(segmentStart, textPos);
+		if(segment < 0) segment = -segment - 2;
+		visitor.match(segmentTarget[segment], queryPos, textPos - segmentStart[segment], k);
+	}
+
+	/**
+	 * @param c Character
+	 * @param row Row
+	 * @return Number of rows starting with a character less than c plus occurrences of c in the BWT before the row
+	 */
+	private int lf(byte c, int row) {
+		return charStart[c] + occ(c, row);
+	}
+
+	/**
+	 * @return Number of occurrences of c in the BWT before the row
+	 */
+	private int occ(byte c, int row) {
+		int checkpoint = row >> OCC_SHIFT;
+		int rtrn = occ[checkpoint * SIGMA + c];
+		for(int i = checkpoint << OCC_SHIFT; i < row; i++) {
+			if(bwt[i] == c) rtrn++;
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @param row Row
+	 * @return Text position of the suffix at the row
+	 */
+	private int locate(int row) {
+		int steps = 0;
+		while((sampledRows[row >> 6] & (1L << (row & 63))) == 0) {
+			byte c = bwt[row];
+			row = lf(c, row);
+			steps++;
+		}
+		int word = row >> 6;
+		int rank = sampledRowRank[word] + Long.bitCount(sampledRows[word] & ((1L << (row & 63)) - 1));
+		return samples[rank] + steps;
+	}
+
+	/**
+	 * Sort the suffixes of a text ending with a unique smallest character by prefix doubling
+	 * @param s Text
+	 * @param n Text length
+	 * @return Suffix array
+	 */
+	private static int[] suffixArray(byte[] s, int n) {
+		int[] p = new int[n];
+		int[] c = new int[n];
+		int[] cnt = new int[Math.max(SIGMA, n)];
+		for(int i = 0; i < n; i++) cnt[s[i]]++;
+		for(int i = 1; i < SIGMA; i++) cnt[i] += cnt[i - 1];
+		for(int i = n - 1; i >= 0; i--) p[--cnt[s[i]]] = i;
+		c[p[0]] = 0;
+		int classes = 1;
+		for(int i = 1; i < n; i++) {
+			if(s[p[i]] != s[p[i - 1]]) classes++;
+			c[p[i]] = classes - 1;
+		}
+		int[] pn = new int[n];
+		int[] cn = new int[n];
+		for(long h = 1; h < n && classes < n; h <<= 1) {
+			int shift = (int) h;
+			for(int i = 0; i < n; i++) {
+				pn[i] = p[i] - shift;
+				if(pn[i] < 0) pn[i] += n;
+			}
+			Arrays.fill(cnt, 0, classes, 0);
+			for(int i = 0; i < n; i++) cnt[c[pn[i]]]++;
+			for(int i = 1; i < classes; i++) cnt[i] += cnt[i - 1];
+			for(int i = n - 1; i >= 0; i--) p[--cnt[c[pn[i]]]] = pn[i];
+			cn[p[0]] = 0;
+			classes = 1;
+			for(int i = 1; i < n; i++) {
+				int cur1 = c[p[i]];
+				int cur2 = c[(int) ((p[i] + h) % n)];
+				int prev1 = c[p[i - 1]];
+				int prev2 = c[(int) ((p[i - 1] + h) % n)];
+				if(cur1 != prev1 || cur2 != prev2) classes++;
+				cn[p[i]] = classes - 1;
+			}
+			int[] tmp = c;
+			c = cn;
+			cn = tmp;
+		}
+		return p;
+	}
+
+}
@@ -0,0 +1,288 @@
+package mirmagic;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Grouping of reference sequences with dense integer IDs
+ * Reference IDs follow the order of the fasta file, which is the order of the SAM header written by
+ * PerfectKmerSearch; group IDs follow the sorted group names
+ * Built from a fasta and a text group table (line format: ref_name group_name), or loaded from the compiled
+ * binary form with a single memory mapped read
+ * @author prussell
+ *
+ */
+public class GroupTable {
+
+	private static final int MAGIC = 0x4d4d4754; // "MMGT"
+	private static final int VERSION = 1;
+
+	private String[] refNames;
+	private int[] refLengths;
+	private String[] groupNames;
+	private int[][] groupsOfRef; // Group IDs of each reference ID
+	private int[][] refsOfGroup; // Reference IDs of each group ID
+	private Map<String, Integer> refIds;
+
+	private GroupTable(String[] refNames, int[] refLengths, String[] groupNames, int[][] groupsOfRef) {
+		this.refNames = refNames;
+		this.refLengths = refLengths;
+		this.groupNames = groupNames;
+		this.groupsOfRef = groupsOfRef;
+		refIds = new HashMap<String, Integer>();
+		for(int i = 0; i < refNames.length; i++) {
+			refIds.put(refNames[i], Integer.valueOf(i));
+		}
+		int[] groupSizes = new int[groupNames.length];
+		for(int[] groups : groupsOfRef) {
+			for(int g : groups) groupSizes[g]++;
+		}
+		refsOfGroup = new int[groupNames.length][];
+		for(int g = 0; g < groupNames.length; g++) {
+			refsOfGroup[g] = new int[groupSizes[g]];
+			groupSizes[g] = 0;
+		}
+		for(int r = 0; r < groupsOfRef.length; r++) {
+			for(int g : groupsOfRef[r]) {
+				refsOfGroup[g][groupSizes[g]++] = r;
+			}
+		}
+	}
+
+	/**
+	 * Load a group table, compiled or text
+	 * A compiled table is checked against the fasta; a text table is compiled in memory
+	 * @param refFasta Reference fasta file
+	 * @param groupTable Compiled group table, or text table with line format ref_name group_name
+	 * @return The group table
+	 * @throws IOException
+	 */
+	public static GroupTable load(String refFasta, String groupTable) throws IOException {
+		FastaIndex refIndex = FastaIndex.load(refFasta);
+		if(!isCompiled(groupTable)) {
+			return fromText(refIndex, groupTable);
+		}
+		GroupTable rtrn = read(groupTable);
+		List<String> names = refIndex.getNames();
+		if(names.size() != rtrn.refNames.length) {
+			throw new IllegalArgumentException("Compiled group table " + groupTable + " was made for a different fasta than " + refFasta);
+		}
+		for(int i = 0; i < rtrn.refNames.length; i++) {
+			if(!names.get(i).equals(rtrn.refNames[i]) || refIndex.getLength(names.get(i)) != rtrn.refLengths[i]) {
+				throw new IllegalArgumentException("Compiled group table " + groupTable + " was made for a different fasta than " + refFasta);
+			}
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Compile a text group table against the sequences in a fasta file
+	 * @param refIndex Index of the reference fasta
+	 * @param groupTable Table of groups. Line format: ref_name group_name
+	 * @return The group table
+	 * @throws IOException
+	 */
+	public static GroupTable fromText(FastaIndex refIndex, String groupTable) throws IOException {
+		Map<String, TreeSet<String>> groupsByRef = new HashMap<String, TreeSet<String>>();
+		TreeMap<String, Integer> groupIds = new TreeMap<String, Integer>();
+		BufferedReader r = new BufferedReader(new FileReader(groupTable));
+		LineTokenizer p = new LineTokenizer();
+		String line;
+		while((line = r.readLine()) != null) {
+			if(line.isEmpty()) continue;
+			p.tokenize(line);
+			if(p.getFieldCount() != 2) {
+				r.close();
+				throw new IllegalArgumentException("Group table format: <ref name>   <group name>");
+			}
+			String refName = p.asString(0);
+			String groupName = p.asString(1);
+			if(!refIndex.contains(refName)) {
+				r.close();
+				throw new IllegalArgumentException("Sequence " + refName + " is not in sequence fasta file. Sets of sequences must match.");
+			}
+			if(!groupsByRef.containsKey(refName)) {
+				groupsByRef.put(refName, new TreeSet<String>());
+			}
+			groupsByRef.get(refName).add(groupName);
+			groupIds.put(groupName, null);
+		}
+		r.close();
+		String[] groupNames = groupIds.keySet().toArray(new String[0]);
+		for(int g = 0; g < groupNames.length; g++) {
+			groupIds.put(groupNames[g], Integer.valueOf(g));
+		}
+		List<String> names = refIndex.getNames();
+		String[] refNames = names.toArray(new String[0]);
+		int[] refLengths = new int[refNames.length];
+		int[][] groupsOfRef = new int[refNames.length][];
+		for(int i = 0; i < refNames.length; i++) {
+			refLengths[i] = refIndex.getLength(refNames[i]);
+			TreeSet<String> groups = groupsByRef.get(refNames[i]);
+			groupsOfRef[i] = new int[groups == null ? 0 : groups.size()];
+			if(groups == null) continue;
+			int j = 0;
+			for(String group : groups) {
+				groupsOfRef[i][j++] = groupIds.get(group).intValue();
+			}
+		}
+		return new GroupTable(refNames, refLengths, groupNames, groupsOfRef);
+	}
+
+	/**
+	 * @param file File name
+	 * @return True iff the file starts with the compiled group table magic number
+	 * @throws IOException
+	 */
+	public static boolean isCompiled(String file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		byte[] b = new byte[4];
+		int n = 0;
+		while(n < 4) {
+			int r = in.read(b, n, 4 - n);
+			if(r < 0) break;
+			n += r;
+		}
+		in.close();
+		return n == 4 && ByteBuffer.wrap(b).getInt() == MAGIC;
+	}
+
+	/**
+	 * Write the compiled binary form
+	 * @param file Output file
+	 * @throws IOException
+	 */
+	public void write(String file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(refNames.length);
+		for(int i = 0; i < refNames.length; i++) {
+			writeString(out, refNames[i]);
+			out.writeInt(refLengths[i]);
+		}
+		out.writeInt(groupNames.length);
+		for(String group : groupNames) {
+			writeString(out, group);
+		}
+		for(int[] groups : groupsOfRef) {
+			out.writeInt(groups.length);
+			for(int g : groups) out.writeInt(g);
+		}
+		out.close();
+	}
+
+	/**
+	 * Read the compiled binary form
+	 * @param file Compiled group table
+	 * @return The group table
+	 * @throws IOException
+	 */
+	public static GroupTable read(String file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		FileChannel channel = in.getChannel();
+		MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		in.close();
+		if(buf.getInt() != MAGIC) {
+			throw new IllegalArgumentException("Not a compiled group table: " + file);
+		}
+		int version = buf.getInt();
+		if(version != VERSION) {
+			throw new IllegalArgumentException("Unsupported compiled group table version " + version + ": " + file);
+		}
+		String[] refNames = new String[buf.getInt()];
+		int[] refLengths = new int[refNames.length];
+		for(int i = 0; i < refNames.length; i++) {
+			refNames[i] = readString(buf);
+			refLengths[i] = buf.getInt();
+		}
+		String[] groupNames = new String[buf.getInt()];
+		for(int g = 0; g < groupNames.length; g++) {
+			groupNames[g] = readString(buf);
+		}
+		int[][] groupsOfRef = new int[refNames.length][];
+		for(int i = 0; i < refNames.length; i++) {
+			groupsOfRef[i] = new int[buf.getInt()];
+			buf.asIntBuffer().get(groupsOfRef[i]);
+			buf.position(buf.position() + 4 * groupsOfRef[i].length);
+		}
+		return new GroupTable(refNames, refLengths, groupNames, groupsOfRef);
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static String readString(ByteBuffer buf) {
+		byte[] b = new byte[buf.getInt()];
+		buf.get(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	public int getNumRefs() {return refNames.length;}
+	public int getNumGroups() {return groupNames.length;}
+	public String getRefName(int refId) {return refNames[refId];}
+	public int getRefLength(int refId) {return refLengths[refId];}
+	public String getGroupName(int groupId) {return groupNames[groupId];}
+
+	/**
+	 * @param refName Reference name
+	 * @return Reference ID, or -1 if the reference is not in the table
+	 */
+	public int getRefId(String refName) {
+		Integer id = refIds.get(refName);
+		return id == null ? -1 : id.intValue();
+	}
+
+	/**
+	 * @param refId Reference ID
+	 * @return IDs of the groups containing the reference; do not modify
+	 */
+	public int[] getGroupsOfRef(int refId) {return groupsOfRef[refId];}
+
+	/**
+	 * @param groupId Group ID
+	 * @return IDs of the references in the group; do not modify
+	 */
+	public int[] getRefsOfGroup(int groupId) {return refsOfGroup[groupId];}
+
+	/**
+	 * @return Group names in group ID order
+	 */
+	public List<String> getGroupNames() {
+		return new ArrayList<String>(Arrays.asList(groupNames));
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		CommandLineParser p = new CommandLineParser();
+		p.setProgramDescription("Compile a group table into binary form for CombineCountsByGroup");
+		p.addStringArg("-f", "Reference fasta file", true);
+		p.addStringArg("-g", "Group table. Line format: ref_name group_name", true);
+		p.addStringArg("-o", "Output compiled group table", true);
+		p.parse(args);
+		GroupTable table = fromText(FastaIndex.load(p.getStringArg("-f")), p.getStringArg("-g"));
+		table.write(p.getStringArg("-o"));
+		System.out.println("Wrote " + table.getNumGroups() + " groups of " + table.getNumRefs() + " reference sequences to " + p.getStringArg("-o"));
+
+	}
+
+}
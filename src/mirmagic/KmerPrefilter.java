@@ -0,0 +1,183 @@
+package mirmagic;
+
+/**
+ * Blocked Bloom filter of the short seeds contained in the target sequences, used to reject queries
+ * that cannot match any target before the full kmer search
+ * Every match with a target is at least mink bases long, so it contains mink - s + 1 consecutive seeds of
+ * length s. Checking the query seeds at every (mink - s + 1)th position therefore hits at least one seed
+ * of every match, and a query none of whose sampled seeds are in the filter cannot match any target.
+ * Bloom filters have no false negatives, so no matches are lost.
+ * Seeds containing N in the query always pass; N's in targets are expanded to every base.
+ * For searches of both strands the filter holds canonical seeds, the smaller of the seed and its reverse
+ * complement, so a query seed is checked with one lookup whichever strand it matches.
+ * Short seeds can be so few that the targets contain nearly all of them; check getPassRate() before relying on the filter.
+ * @author prussell
+ *
+ */
+public class KmerPrefilter {
+
+	/**
+	 * Maximum seed length
+	 */
+	public static final int MAX_SEED_LENGTH = 14;
+
+	private static final int BITS_PER_SEED = 12;
+	private static final int BLOCK_WORDS = 8; // 512 bit blocks, one cache line
+	private static final int NUM_HASHES = 3;
+	private static final int CODE_N = BaseCodes.N;
+
+	private int seedLength;
+	private int stride;
+	private long[] bits;
+	private int blockMask;
+	private boolean bothStrands;
+	private long numDistinctSeeds; // Seeds added that were not already in the filter
+
+	/**
+	 * @param mink Minimum length of any match
+	 * @param totalTargetBases Total length of the target sequences, to size the filter
+	 */
+	public KmerPrefilter(int mink, long totalTargetBases) {
+		this(mink, totalTargetBases, false);
+	}
+
+	/**
+	 * @param mink Minimum length of any match
+	 * @param totalTargetBases Total length of the target sequences, to size the filter
+	 * @param bothStrands Also pass queries that could match the reverse complement of a target
+	 */
+	public KmerPrefilter(int mink, long totalTargetBases, boolean bothStrands) {
+		if(mink < 1) {
+			throw new IllegalArgumentException("Invalid min match length: " + mink);
+		}
+		seedLength = Math.min(mink, MAX_SEED_LENGTH);
+		stride = mink - seedLength + 1;
+		long numBlocks = Math.max(1, totalTargetBases * BITS_PER_SEED / (64 * BLOCK_WORDS));
+		numBlocks = Math.min(Long.highestOneBit(numBlocks) << 1, 1L << 24);
+		bits = new long[(int) numBlocks * BLOCK_WORDS];
+		blockMask = (int) numBlocks - 1;
+		this.bothStrands = bothStrands;
+	}
+
+	/**
+	 * Add the seeds of a target sequence
+	 * @param bases Target bases
+	 */
+	public void addTarget(String bases) {
+		byte[] codes = BaseCodes.encode(bases);
+		for(int p = 0; p + seedLength <= codes.length; p++) {
+			addExpanded(codes, p, p, 0);
+		}
+	}
+
+	/**
+	 * Check whether a query could match any target
+	 * @param query Codes of the query bases from BaseCodes
+	 * @param length Query length; the array can be longer
+	 * @return False only if the query certainly matches no target
+	 */
+	public boolean mayMatch(byte[] query, int length) {
+		for(int p = 0; p + seedLength <= length; p += stride) {
+			long seed = 0;
+			boolean hasN = false;
+			for(int i = p; i < p + seedLength; i++) {
+				int c = query[i];
+				if(c == CODE_N) {
+					hasN = true;
+					break;
+				}
+				seed = (seed << 2) | c;
+			}
+			if(hasN || contains(canonical(seed))) return true;
+		}
+		return false;
+	}
+
+	private void addExpanded(byte[] codes, int start, int i, long prefix) {
+		long seed = prefix;
+		for(int j = i; j < start + seedLength; j++) {
+			int c = codes[j];
+			if(c == CODE_N) {
+				for(int b = 0; b < 4; b++) {
+					addExpanded(codes, start, j + 1, (seed << 2) | b);
+				}
+				return;
+			}
+			seed = (seed << 2) | c;
+		}
+		seed = canonical(seed);
+		if(!contains(seed)) {
+			add(seed);
+			numDistinctSeeds++;
+		}
+	}
+
+	/**
+	 * Estimate the proportion of random seeds the filter passes, from the number of distinct target seeds
+	 * out of all possible seeds and the false positive rate of the Bloom filter
+	 * A query is only rejected if all its sampled seeds fail, so a rate near 1 means the filter rejects almost nothing
+	 * @return Estimated proportion of random seeds in the filter
+	 */
+	public double getPassRate() {
+		double possibleSeeds = Math.pow(4, seedLength);
+		if(bothStrands) possibleSeeds /= 2;
+		double present = Math.min(1, numDistinctSeeds / possibleSeeds);
+		long setBits = 0;
+		for(long word : bits) {
+			setBits += Long.bitCount(word);
+		}
+		double falsePositiveRate = Math.pow((double) setBits / (64L * bits.length), NUM_HASHES);
+		return present + (1 - present) * falsePositiveRate;
+	}
+
+	/**
+	 * @return Seed length
+	 */
+	public int getSeedLength() {
+		return seedLength;
+	}
+
+	/**
+	 * @param seed Packed seed
+	 * @return The seed, or the smaller of the seed and its reverse complement if the filter is for both strands
+	 */
+	private long canonical(long seed) {
+		if(!bothStrands) return seed;
+		long rc = 0;
+		long bits = seed;
+		for(int i = 0; i < seedLength; i++) {
+			rc = (rc << 2) | (3 - (bits & 3));
+			bits >>>= 2;
+		}
+		return Math.min(seed, rc);
+	}
+
+	private void add(long seed) {
+		long h = hash(seed);
+		int block = ((int) (h >>> 40) & blockMask) * BLOCK_WORDS;
+		for(int i = 0; i < NUM_HASHES; i++) {
+			int bit = (int) (h >>> (9 * i)) & 511;
+			bits[block + (bit >>> 6)] |= 1L << (bit & 63);
+		}
+	}
+
+	private boolean contains(long seed) {
+		long h = hash(seed);
+		int block = ((int) (h >>> 40) & blockMask) * BLOCK_WORDS;
+		for(int i = 0; i < NUM_HASHES; i++) {
+			int bit = (int) (h >>> (9 * i)) & 511;
+			if((bits[block + (bit >>> 6)] & (1L << (bit & 63))) == 0) return false;
+		}
+		return true;
+	}
+
+	private static long hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+
+}
@@ -0,0 +1,356 @@
+package mirmagic;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Split a line into fields around whitespace or a delimiter character in one scan, without regular expressions
+ * Field boundaries are stored as offsets in arrays that are reused from line to line; fields are read as
+ * CharSequence views or parsed to numbers directly from the offsets, so nothing is copied unless a String is asked for
+ * Fields are the same as String.split("\\s++") or String.split(delimiter) would give, including an empty
+ * first field for leading whitespace and no trailing empty fields
+ * Lines can be characters or bytes; bytes are read as ISO-8859-1
+ * @author prussell
+ *
+ */
+public class LineTokenizer {
+
+	private static final double[] POW10 = new double[23];
+
+	static {
+		POW10[0] = 1;
+		for(int i = 1; i < POW10.length; i++) {
+			POW10[i] = 10 * POW10[i - 1];
+		}
+	}
+
+	private CharSequence chars; // Current line if it is characters
+	private byte[] bytes; // Current line if it is bytes
+	private int[] starts = new int[16];
+	private int[] ends = new int[16];
+	private int numFields = 0;
+
+	/**
+	 * Split a line around runs of whitespace
+	 * @param line The line
+	 * @return Number of fields
+	 */
+	public int tokenize(CharSequence line) {
+		chars = line;
+		bytes = null;
+		return split(0, line.length(), (char) 0, true);
+	}
+
+	/**
+	 * Split a line around each occurrence of a delimiter
+	 * @param line The line
+	 * @param delimiter Delimiter character
+	 * @return Number of fields
+	 */
+	public int tokenize(CharSequence line, char delimiter) {
+		chars = line;
+		bytes = null;
+		return split(0, line.length(), delimiter, false);
+	}
+
+	/**
+	 * Split a line of bytes around runs of whitespace
+	 * Offsets of fields are positions in the array
+	 * @param buf Buffer containing the line
+	 * @param offset Start of the line in the buffer
+	 * @param length Length of the line, not including the line terminator
+	 * @return Number of fields
+	 */
+	public int tokenize(byte[] buf, int offset, int length) {
+		chars = null;
+		bytes = buf;
+		return split(offset, offset + length, (char) 0, true);
+	}
+
+	/**
+	 * Split a line of bytes around each occurrence of a delimiter
+	 * @param buf Buffer containing the line
+	 * @param offset Start of the line in the buffer
+	 * @param length Length of the line, not including the line terminator
+	 * @param delimiter Delimiter character
+	 * @return Number of fields
+	 */
+	public int tokenize(byte[] buf, int offset, int length, char delimiter) {
+		chars = null;
+		bytes = buf;
+		return split(offset, offset + length, delimiter, false);
+	}
+
+	private char charAt(int pos) {
+		return bytes == null ? chars.charAt(pos) : (char) (bytes[pos] & 0xff);
+	}
+
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == '\u000b';
+	}
+
+	private int split(int from, int to, char delimiter, boolean whitespace) {
+		numFields = 0;
+		if(from == to) {
+			// No delimiter to match, so the empty line is one empty field
+			addField(from, to);
+			return numFields;
+		}
+		int start = from;
+		int i = from;
+		while(i < to) {
+			char c = charAt(i);
+			if(whitespace ? isWhitespace(c) : c == delimiter) {
+				addField(start, i);
+				i++;
+				if(whitespace) {
+					while(i < to && isWhitespace(charAt(i))) i++;
+				}
+				start = i;
+			} else {
+				i++;
+			}
+		}
+		addField(start, to);
+		while(numFields > 0 && starts[numFields - 1] == ends[numFields - 1]) {
+			numFields--;
+		}
+		return numFields;
+	}
+
+	private void addField(int start, int end) {
+		if(numFields == starts.length) {
+			starts = Arrays.copyOf(starts, 2 * numFields);
+			ends = Arrays.copyOf(ends, 2 * numFields);
+		}
+		starts[numFields] = start;
+		ends[numFields] = end;
+		numFields++;
+	}
+
+	/**
+	 * @return Number of fields in the current line
+	 */
+	public int getFieldCount() {
+		return numFields;
+	}
+
+	/**
+	 * @param index Field number
+	 * @return Length of the field
+	 */
+	public int fieldLength(int index) {
+		checkIndex(index);
+		return ends[index] - starts[index];
+	}
+
+	/**
+	 * Get a view of a field without copying it
+	 * The view keeps reading the line it was made from, so it stays valid after the next line is tokenized
+	 * as long as that line is not changed
+	 * @param index Field number
+	 * @return The field
+	 */
+	public CharSequence field(int index) {
+		checkIndex(index);
+		return new FieldView(chars, bytes, starts[index], ends[index]);
+	}
+
+	/**
+	 * @param index Field number
+	 * @return The field as a new String
+	 */
+	public String asString(int index) {
+		checkIndex(index);
+		if(bytes == null) {
+			return chars.subSequence(starts[index], ends[index]).toString();
+		}
+		return new String(bytes, starts[index], ends[index] - starts[index], StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @param index Field number
+	 * @param s String to compare
+	 * @return True iff the field equals the string
+	 */
+	public boolean fieldEquals(int index, CharSequence s) {
+		checkIndex(index);
+		int len = ends[index] - starts[index];
+		if(len != s.length()) return false;
+		for(int i = 0; i < len; i++) {
+			if(charAt(starts[index] + i) != s.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return All fields of the current line as new Strings
+	 */
+	public String[] toStringArray() {
+		String[] rtrn = new String[numFields];
+		for(int i = 0; i < numFields; i++) {
+			rtrn[i] = asString(i);
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Parse a field to an int
+	 * @param index Field number
+	 * @return The field as an int
+	 */
+	public int asInt(int index) {
+		long value = parseShortLong(index);
+		if(value == Long.MIN_VALUE || value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+			try {
+				return Integer.parseInt(asString(index));
+			} catch (NumberFormatException e) {
+				throw new NumberFormatException("Field " + index + " cannot be parsed to int: " + asString(index));
+			}
+		}
+		return (int) value;
+	}
+
+	/**
+	 * Parse a field to a long
+	 * @param index Field number
+	 * @return The field as a long
+	 */
+	public long asLong(int index) {
+		long value = parseShortLong(index);
+		if(value == Long.MIN_VALUE) {
+			try {
+				return Long.parseLong(asString(index));
+			} catch (NumberFormatException e) {
+				throw new NumberFormatException("Field " + index + " cannot be parsed to long: " + asString(index));
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Parse a field to a double
+	 * Plain decimals short enough to be converted exactly are parsed from the offsets; everything else,
+	 * including exponents, goes through Double.parseDouble, so the result is always correctly rounded
+	 * @param index Field number
+	 * @return The field as a double
+	 */
+	public double asDouble(int index) {
+		checkIndex(index);
+		int i = starts[index];
+		int end = ends[index];
+		boolean negative = false;
+		if(i < end && (charAt(i) == '-' || charAt(i) == '+')) {
+			negative = charAt(i) == '-';
+			i++;
+		}
+		long mantissa = 0;
+		int numDigits = 0;
+		int fractionDigits = -1;
+		for(; i < end; i++) {
+			char c = charAt(i);
+			if(c >= '0' && c <= '9') {
+				mantissa = 10 * mantissa + (c - '0');
+				numDigits++;
+				if(fractionDigits >= 0) fractionDigits++;
+				if(numDigits > 18) break;
+			} else if(c == '.' && fractionDigits < 0) {
+				fractionDigits = 0;
+			} else {
+				break;
+			}
+		}
+		if(i == end && numDigits > 0 && mantissa <= (1L << 53) && fractionDigits < POW10.length) {
+			double value = fractionDigits > 0 ? mantissa / POW10[fractionDigits] : mantissa;
+			return negative ? -value : value;
+		}
+		String token = asString(index);
+		try {
+			return Double.parseDouble(token);
+		} catch (NumberFormatException e) {
+			if(token.equals("inf")) return Double.POSITIVE_INFINITY;
+			if(token.equals("-inf")) return Double.NEGATIVE_INFINITY;
+			if(token.equals("nan")) return Double.NaN;
+			if(token.equals("-nan")) return Double.NaN;
+			throw new NumberFormatException("Field " + index + " cannot be parsed to double: " + token);
+		}
+	}
+
+	/**
+	 * Parse an optionally signed integer of at most 18 digits from the offsets
+	 * @return The value, or Long.MIN_VALUE if the field is not such an integer
+	 */
+	private long parseShortLong(int index) {
+		checkIndex(index);
+		int i = starts[index];
+		int end = ends[index];
+		boolean negative = false;
+		if(i < end && (charAt(i) == '-' || charAt(i) == '+')) {
+			negative = charAt(i) == '-';
+			i++;
+		}
+		if(i == end || end - i > 18) return Long.MIN_VALUE;
+		long value = 0;
+		for(; i < end; i++) {
+			char c = charAt(i);
+			if(c < '0' || c > '9') return Long.MIN_VALUE;
+			value = 10 * value + (c - '0');
+		}
+		return negative ? -value : value;
+	}
+
+	private void checkIndex(int index) {
+		if(index < 0 || index >= numFields) {
+			throw new ArrayIndexOutOfBoundsException(index);
+		}
+	}
+
+	/**
+	 * A field of a line, read in place
+	 */
+	private static class FieldView implements CharSequence {
+
+		private CharSequence chars;
+		private byte[] bytes;
+		private int start;
+		private int end;
+
+		FieldView(CharSequence chars, byte[] bytes, int start, int end) {
+			this.chars = chars;
+			this.bytes = bytes;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public int length() {
+			return end - start;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if(index < 0 || index >= end - start) {
+				throw new StringIndexOutOfBoundsException(index);
+			}
+			return bytes == null ? chars.charAt(start + index) : (char) (bytes[start + index] & 0xff);
+		}
+
+		@Override
+		public CharSequence subSequence(int from, int to) {
+			if(from < 0 || to > end - start || from > to) {
+				throw new StringIndexOutOfBoundsException("Invalid range " + from + "-" + to);
+			}
+			return new FieldView(chars, bytes, start + from, start + to);
+		}
+
+		@Override
+		public String toString() {
+			if(bytes == null) {
+				return chars.subSequence(start, end).toString();
+			}
+			return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+		}
+
+	}
+
+}
@@ -0,0 +1,140 @@
+package mirmagic;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * Checkpoint of a mapping run, so a run that is killed part way through can be restarted where it left off
+ * Records the byte offset in the fastq of the first read whose records are not yet written, the counts and
+ * read length histograms of the reads before it, and the position in the output file after their records
+ * The output must be synced to disk before the checkpoint is written; the checkpoint is written to a
+ * temporary file and renamed, so the file always holds a complete checkpoint
+ * @author prussell
+ *
+ */
+public class MappingCheckpoint {
+
+	private static final String VERSION = "1";
+	private static final String HISTOGRAM_PREFIX = "histogram.";
+
+	private String fastq;
+	private long fastqLength;
+	private long fastqOffset;
+	private String output;
+	private String format;
+	private long outputLength;
+	private long[] counts;
+	private ReadLengthHistograms histograms; // Null if histograms are not kept
+
+	/**
+	 * @param fastq Fastq file being mapped
+	 * @param fastqOffset Byte offset in the fastq of the first read not covered by the checkpoint
+	 * @param output Output file
+	 * @param format Output format, one of the formats in SamtoolsUtils
+	 * @param outputLength Position in the output after the records of the reads before the offset
+	 * @param stats Counts of the reads before the offset
+	 * @param histograms Read length histograms of the reads before the offset, or null if not kept
+	 */
+	public MappingCheckpoint(String fastq, long fastqOffset, String output, String format, long outputLength, MappingStats stats, ReadLengthHistograms histograms) {
+		this.fastq = fastq;
+		this.fastqLength = new File(fastq).length();
+		this.fastqOffset = fastqOffset;
+		this.output = output;
+		this.format = format;
+		this.outputLength = outputLength;
+		this.counts = stats.getCounts();
+		this.histograms = histograms;
+	}
+
+	private MappingCheckpoint() {}
+
+	/**
+	 * Write the checkpoint, replacing any previous one
+	 * @param file Checkpoint file
+	 * @throws IOException
+	 */
+	public void write(String file) throws IOException {
+		Properties props = new Properties();
+		props.setProperty("version", VERSION);
+		props.setProperty("fastq", fastq);
+		props.setProperty("fastq_length", Long.toString(fastqLength));
+		props.setProperty("fastq_offset", Long.toString(fastqOffset));
+		props.setProperty("output", output);
+		props.setProperty("format", format);
+		props.setProperty("output_length", Long.toString(outputLength));
+		for(int i = 0; i < counts.length; i++) {
+			props.setProperty("reads." + MappingStats.COUNT_NAMES[i], Long.toString(counts[i]));
+		}
+		if(histograms != null) {
+			histograms.toProperties(props, HISTOGRAM_PREFIX);
+		}
+		File tmpFile = new File(file + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmpFile);
+		props.store(out, "PerfectKmerSearch checkpoint");
+		out.getFD().sync();
+		out.close();
+		if(!tmpFile.renameTo(new File(file))) {
+			throw new IOException("Could not rename " + tmpFile + " to " + file);
+		}
+	}
+
+	/**
+	 * Read a checkpoint
+	 * @param file Checkpoint file
+	 * @return The checkpoint, or null if the file does not exist
+	 * @throws IOException
+	 */
+	public static MappingCheckpoint read(String file) throws IOException {
+		if(!new File(file).exists()) {
+			return null;
+		}
+		Properties props = new Properties();
+		FileInputStream in = new FileInputStream(file);
+		props.load(in);
+		in.close();
+		if(!VERSION.equals(props.getProperty("version"))) {
+			throw new IllegalArgumentException("Unsupported checkpoint version in " + file + ": " + props.getProperty("version"));
+		}
+		MappingCheckpoint rtrn = new MappingCheckpoint();
+		rtrn.fastq = props.getProperty("fastq");
+		rtrn.fastqLength = Long.parseLong(props.getProperty("fastq_length"));
+		rtrn.fastqOffset = Long.parseLong(props.getProperty("fastq_offset"));
+		rtrn.output = props.getProperty("output");
+		rtrn.format = props.getProperty("format");
+		rtrn.outputLength = Long.parseLong(props.getProperty("output_length"));
+		rtrn.counts = new long[MappingStats.COUNT_NAMES.length];
+		for(int i = 0; i < rtrn.counts.length; i++) {
+			rtrn.counts[i] = Long.parseLong(props.getProperty("reads." + MappingStats.COUNT_NAMES[i]));
+		}
+		rtrn.histograms = props.getProperty(HISTOGRAM_PREFIX + "reads") == null ? null : ReadLengthHistograms.fromProperties(props, HISTOGRAM_PREFIX);
+		return rtrn;
+	}
+
+	/**
+	 * Check that the checkpoint is from a run with the same input and output
+	 * @param fastq Fastq file of this run
+	 * @param output Output file of this run
+	 * @param format Output format of this run
+	 * @param keepHistograms Whether this run keeps read length histograms
+	 */
+	public void checkMatches(String fastq, String output, String format, boolean keepHistograms) {
+		if(!this.fastq.equals(fastq) || this.fastqLength != new File(fastq).length()) {
+			throw new IllegalArgumentException("Checkpoint is for fastq " + this.fastq + " of length " + this.fastqLength + ", not " + fastq);
+		}
+		if(!this.output.equals(output) || !this.format.equals(format)) {
+			throw new IllegalArgumentException("Checkpoint is for output " + this.output + " in format " + this.format + ", not " + output + " in " + format);
+		}
+		if(keepHistograms != (histograms != null)) {
+			throw new IllegalArgumentException("Checkpoint was made " + (keepHistograms ? "without" : "with") + " read length histograms; run the same way to resume");
+		}
+	}
+
+	public long getFastqOffset() {return fastqOffset;}
+	public long getOutputLength() {return outputLength;}
+	public long[] getCounts() {return counts;}
+	public ReadLengthHistograms getHistograms() {return histograms;}
+
+}
@@ -0,0 +1,354 @@
+package mirmagic;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMRecord;
+
+/**
+ * Reader, matcher and writer stages on their own threads, connected by bounded queues of read batches
+ * Parsing, matching and compression overlap, and a stage that falls behind blocks the one feeding it
+ * instead of letting batches pile up in memory
+ * Several matcher threads can share the match queue; the writer then either puts the batches back in input
+ * order in a reorder buffer, or writes them as they finish
+ * A fixed set of batches is allocated up front and recycled from the writer back to the reader
+ * The end of the input is passed down the pipeline as an empty batch
+ * @author prussell
+ *
+ */
+public class MappingPipeline {
+
+	/**
+	 * Finds the alignments of a batch of reads
+	 */
+	public interface BatchMatcher {
+
+		/**
+		 * Add the alignments of the reads in the batch to its alignment list
+		 * @param batch The batch
+		 */
+		public void match(ReadBatch batch);
+
+	}
+
+	/**
+	 * Called by the writer thread after the alignments of each batch are written
+	 */
+	public interface BatchListener {
+
+		/**
+		 * @param batch The batch; recycled after this returns
+		 * @throws IOException
+		 */
+		public void batchWritten(ReadBatch batch) throws IOException;
+
+	}
+
+	public static final int DEFAULT_BATCH_SIZE = 4096;
+	public static final int DEFAULT_QUEUE_DEPTH = 4;
+
+	private int batchSize;
+	private int queueDepth;
+	private int numMatchers;
+	private boolean ordered;
+	private BlockingQueue<ReadBatch> freeBatches;
+	private BlockingQueue<ReadBatch> matchQueue; // Batches read and waiting to be matched
+	private BlockingQueue<ReadBatch> writeQueue; // Batches matched and waiting to be written
+	private QueueStats matchQueueStats = new QueueStats();
+	private QueueStats writeQueueStats = new QueueStats();
+	private volatile int maxReorderBatches = 0; // Most batches held at once to restore input order
+	private BatchListener listener = null;
+
+	/**
+	 * Running occupancy of a queue, sampled each time a batch is put in it
+	 */
+	private static class QueueStats {
+
+		private AtomicLong numPuts = new AtomicLong();
+		private AtomicLong sumSizes = new AtomicLong();
+		private AtomicLong numFull = new AtomicLong();
+
+		/**
+		 * Put a batch in a queue, blocking if it is full
+		 */
+		void put(BlockingQueue<ReadBatch> queue, ReadBatch batch) throws InterruptedException {
+			if(!queue.offer(batch)) {
+				numFull.incrementAndGet();
+				queue.put(batch);
+			}
+			numPuts.incrementAndGet();
+			sumSizes.addAndGet(queue.size());
+		}
+
+		double getMeanSize() {
+			long n = numPuts.get();
+			return n == 0 ? 0 : (double) sumSizes.get() / n;
+		}
+
+	}
+
+	/**
+	 * Pipeline with one matcher thread
+	 * @param batchSize Number of reads per batch
+	 * @param queueDepth Max number of batches waiting between two stages
+	 */
+	public MappingPipeline(int batchSize, int queueDepth) {
+		this(batchSize, queueDepth, 1, true);
+	}
+	
+	/**
+	 * @param batchSize Number of reads per batch
+	 * @param queueDepth Max number of batches waiting between two stages
+	 * @param numMatchers Number of matcher threads
+	 * @param ordered Write alignments in input order; otherwise write each batch as soon as it is matched
+	 */
+	public MappingPipeline(int batchSize, int queueDepth, int numMatchers, boolean ordered) {
+		if(batchSize < 1 || queueDepth < 1 || numMatchers < 1) {
+			throw new IllegalArgumentException("Batch size, queue depth and number of matchers must be positive: " + batchSize + ", " + queueDepth + ", " + numMatchers);
+		}
+		this.batchSize = batchSize;
+		this.queueDepth = queueDepth;
+		this.numMatchers = numMatchers;
+		this.ordered = ordered;
+		matchQueue = new ArrayBlockingQueue<ReadBatch>(queueDepth);
+		writeQueue = new ArrayBlockingQueue<ReadBatch>(queueDepth);
+		// Enough for both queues to be full while the reader and each matcher hold a batch, with one more
+		// so the writer can hold batches back for ordering without stopping the pipeline
+		int numBatches = 2 * queueDepth + numMatchers + 2;
+		freeBatches = new ArrayBlockingQueue<ReadBatch>(numBatches);
+		for(int i = 0; i < numBatches; i++) {
+			freeBatches.add(new ReadBatch(batchSize));
+		}
+	}
+
+	/**
+	 * @param listener Listener to call after each batch is written, in the writer thread
+	 */
+	public void setBatchListener(BatchListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Read, match and write all the reads with a single matcher
+	 * @param reader Source of reads, used only by the reader thread
+	 * @param matcher Matcher, used only by the matcher thread
+	 * @param writer Writer for the alignments, used only by the writer thread; not closed
+	 * @throws IOException
+	 */
+	public void run(FastqParser reader, BatchMatcher matcher, SAMFileWriter writer) throws IOException {
+		run(reader, Collections.singletonList(matcher), writer);
+	}
+	
+	/**
+	 * Read, match and write all the reads
+	 * If a stage fails, the others are interrupted and its exception is thrown
+	 * @param reader Source of reads, used only by the reader thread
+	 * @param matchers One matcher per matcher thread, each used only by its thread
+	 * @param writer Writer for the alignments, used only by the writer thread; not closed
+	 * @throws IOException
+	 */
+	public void run(final FastqParser reader, List<? extends BatchMatcher> matchers, final SAMFileWriter writer) throws IOException {
+		if(matchers.size() != numMatchers) {
+			throw new IllegalArgumentException("Pipeline has " + numMatchers + " matcher threads but got " + matchers.size() + " matchers");
+		}
+		final ExecutorService stages = Executors.newFixedThreadPool(numMatchers + 2);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		futures.add(stages.submit(new Stage(stages, failure) {
+			@Override
+			void run() throws InterruptedException {
+				long index = 0;
+				while(true) {
+					ReadBatch batch = freeBatches.take();
+					batch.clear(index++);
+					while(!batch.isFull() && reader.hasNext()) {
+						batch.add(reader.next());
+					}
+					batch.setEndOffset(reader.getOffset());
+					matchQueueStats.put(matchQueue, batch);
+					if(batch.isEmpty()) return;
+				}
+			}
+		}));
+		final AtomicInteger activeMatchers = new AtomicInteger(numMatchers);
+		for(final BatchMatcher matcher : matchers) {
+			futures.add(stages.submit(new Stage(stages, failure) {
+				@Override
+				void run() throws InterruptedException {
+					while(true) {
+						ReadBatch batch = matchQueue.take();
+						if(batch.isEmpty()) {
+							// The last matcher to see the end passes it to the writer, after all other batches
+							if(activeMatchers.decrementAndGet() == 0) {
+								writeQueueStats.put(writeQueue, batch);
+							} else {
+								matchQueue.put(batch);
+							}
+							return;
+						}
+						matcher.match(batch);
+						writeQueueStats.put(writeQueue, batch);
+					}
+				}
+			}));
+		}
+		futures.add(stages.submit(new Stage(stages, failure) {
+			@Override
+			void run() throws InterruptedException, IOException {
+				Map<Long, ReadBatch> reorderBuffer = new HashMap<Long, ReadBatch>();
+				long nextIndex = 0;
+				while(true) {
+					ReadBatch batch = writeQueue.take();
+					if(batch.isEmpty()) {
+						if(!reorderBuffer.isEmpty()) {
+							throw new IllegalStateException("Batches missing before the end of the input");
+						}
+						return;
+					}
+					if(!ordered) {
+						write(batch, writer);
+						continue;
+					}
+					reorderBuffer.put(Long.valueOf(batch.getIndex()), batch);
+					if(reorderBuffer.size() > maxReorderBatches) {
+						maxReorderBatches = reorderBuffer.size();
+					}
+					ReadBatch next;
+					while((next = reorderBuffer.remove(Long.valueOf(nextIndex))) != null) {
+						write(next, writer);
+						nextIndex++;
+					}
+				}
+			}
+		}));
+		try {
+			for(Future<Void> future : futures) {
+				future.get();
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while mapping", e);
+		} catch(ExecutionException e) {
+			// The first failure interrupted the other stages; report it rather than the interruptions
+			Throwable cause = failure.get() == null ? e.getCause() : failure.get();
+			if(cause instanceof IOException) throw (IOException) cause;
+			if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if(cause instanceof Error) throw (Error) cause;
+			throw new IllegalStateException(cause);
+		} finally {
+			stages.shutdownNow();
+		}
+	}
+
+	/**
+	 * Write the alignments of a batch, call the listener and recycle the batch
+	 */
+	private void write(ReadBatch batch, SAMFileWriter writer) throws InterruptedException, IOException {
+		for(SAMRecord alignment : batch.getAlignments()) {
+			writer.addAlignment(alignment);
+		}
+		if(listener != null) {
+			listener.batchWritten(batch);
+		}
+		freeBatches.put(batch);
+	}
+
+	/**
+	 * A stage that records the first failure of any stage and interrupts the others
+	 */
+	private static abstract class Stage implements Callable<Void> {
+
+		private ExecutorService stages;
+		private AtomicReference<Throwable> failure;
+
+		Stage(ExecutorService stages, AtomicReference<Throwable> failure) {
+			this.stages = stages;
+			this.failure = failure;
+		}
+
+		abstract void run() throws Exception;
+
+		@Override
+		public Void call() throws Exception {
+			try {
+				run();
+			} catch(Throwable t) {
+				failure.compareAndSet(null, t);
+				stages.shutdownNow();
+				if(t instanceof Exception) throw (Exception) t;
+				throw (Error) t;
+			}
+			return null;
+		}
+
+	}
+
+	public int getBatchSize() {return batchSize;}
+	public int getQueueDepth() {return queueDepth;}
+	public int getNumMatchers() {return numMatchers;}
+	public boolean isOrdered() {return ordered;}
+
+	/**
+	 * @return Number of batches waiting to be matched
+	 */
+	public int getMatchQueueSize() {return matchQueue.size();}
+
+	/**
+	 * @return Number of batches waiting to be written
+	 */
+	public int getWriteQueueSize() {return writeQueue.size();}
+
+	/**
+	 * @return Mean number of batches waiting to be matched, sampled when batches are added
+	 * Near the queue depth means matching is the bottleneck; near zero means reading is
+	 */
+	public double getMeanMatchQueueSize() {return matchQueueStats.getMeanSize();}
+
+	/**
+	 * @return Mean number of batches waiting to be written, sampled when batches are added
+	 * Near the queue depth means writing is the bottleneck
+	 */
+	public double getMeanWriteQueueSize() {return writeQueueStats.getMeanSize();}
+
+	/**
+	 * @return Number of times the reader blocked because the match queue was full
+	 */
+	public long getMatchQueueFullCount() {return matchQueueStats.numFull.get();}
+
+	/**
+	 * @return Number of times a matcher blocked because the write queue was full
+	 */
+	public long getWriteQueueFullCount() {return writeQueueStats.numFull.get();}
+
+	/**
+	 * @return Most batches the writer has held at once to restore input order
+	 */
+	public int getMaxReorderBatches() {return maxReorderBatches;}
+
+	/**
+	 * Print the mean queue occupancy to standard out
+	 */
+	public void printQueueStats() {
+		System.out.println("Mean batches waiting to be matched:\t" + String.format("%.2f", getMeanMatchQueueSize()) + " of " + queueDepth + "\t(reader blocked " + getMatchQueueFullCount() + " times)");
+		System.out.println("Mean batches waiting to be written:\t" + String.format("%.2f", getMeanWriteQueueSize()) + " of " + queueDepth + "\t(matchers blocked " + getWriteQueueFullCount() + " times)");
+		if(ordered && numMatchers > 1) {
+			System.out.println("Max batches held to restore input order:\t" + maxReorderBatches);
+		}
+	}
+
+}
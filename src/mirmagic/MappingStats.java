@@ -0,0 +1,168 @@
+package mirmagic;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running counts of reads processed by the kmer search
+ * Counters can be read from other threads while mapping is in progress, e.g. by a metrics exporter
+ * @author prussell
+ *
+ */
+public class MappingStats {
+
+	private final AtomicLong numDone = new AtomicLong();
+	private final AtomicLong numUniquelyMapped = new AtomicLong();
+	private final AtomicLong numMultiMapped = new AtomicLong();
+	private final AtomicLong numUnmapped = new AtomicLong();
+	private final AtomicLong numTooShort = new AtomicLong();
+	private final AtomicLong numIllegalChar = new AtomicLong();
+	private final AtomicLong numTooManyNs = new AtomicLong();
+	private final AtomicLong numAdapterTrimmed = new AtomicLong();
+	private final AtomicLong numFailedLengthFilter = new AtomicLong();
+	private final long startTime;
+	private long numRestored = 0; // Reads counted by an earlier run, e.g. restored from a checkpoint
+
+	public MappingStats() {
+		startTime = System.nanoTime();
+	}
+
+	/**
+	 * Count a read that has been processed, whatever the outcome
+	 * @return The number of reads processed so far including this one
+	 */
+	public long incrementDone() {return numDone.incrementAndGet();}
+
+	/**
+	 * Count a read that was searched against the index
+	 * @param numTargets Number of targets the read matched
+	 */
+	public void addMapped(int numTargets) {
+		if(numTargets == 0) numUnmapped.incrementAndGet();
+		if(numTargets == 1) numUniquelyMapped.incrementAndGet();
+		if(numTargets > 1) numMultiMapped.incrementAndGet();
+	}
+
+	public void incrementTooShort() {numTooShort.incrementAndGet();}
+	public void incrementIllegalChar() {numIllegalChar.incrementAndGet();}
+	public void incrementTooManyNs() {numTooManyNs.incrementAndGet();}
+	public void incrementAdapterTrimmed() {numAdapterTrimmed.incrementAndGet();}
+	public void incrementFailedLengthFilter() {numFailedLengthFilter.incrementAndGet();}
+
+	public long getNumDone() {return numDone.get();}
+	public long getNumUniquelyMapped() {return numUniquelyMapped.get();}
+	public long getNumMultiMapped() {return numMultiMapped.get();}
+	public long getNumUnmapped() {return numUnmapped.get();}
+	public long getNumTooShort() {return numTooShort.get();}
+	public long getNumIllegalChar() {return numIllegalChar.get();}
+	public long getNumTooManyNs() {return numTooManyNs.get();}
+	public long getNumAdapterTrimmed() {return numAdapterTrimmed.get();}
+	public long getNumFailedLengthFilter() {return numFailedLengthFilter.get();}
+
+	/**
+	 * Names of the counters, in the order of getCounts()
+	 */
+	public static final String[] COUNT_NAMES = {"done", "uniquely_mapped", "multi_mapped", "unmapped", "too_short", "illegal_char", "too_many_ns", "adapter_trimmed", "failed_length_filter"};
+
+	private AtomicLong[] counters() {
+		return new AtomicLong[] {numDone, numUniquelyMapped, numMultiMapped, numUnmapped, numTooShort, numIllegalChar, numTooManyNs, numAdapterTrimmed, numFailedLengthFilter};
+	}
+
+	/**
+	 * @return All counters, in the order of COUNT_NAMES
+	 */
+	public long[] getCounts() {
+		AtomicLong[] counters = counters();
+		long[] rtrn = new long[counters.length];
+		for(int i = 0; i < counters.length; i++) {
+			rtrn[i] = counters[i].get();
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Add to all counters, e.g. to restore them from a checkpoint
+	 * @param counts Amounts to add, in the order of COUNT_NAMES
+	 */
+	public void addCounts(long[] counts) {
+		AtomicLong[] counters = counters();
+		if(counts.length != counters.length) {
+			throw new IllegalArgumentException("Expected " + counters.length + " counts but got " + counts.length);
+		}
+		for(int i = 0; i < counters.length; i++) {
+			counters[i].addAndGet(counts[i]);
+		}
+	}
+
+	/**
+	 * Set all counters to zero, e.g. to reuse the stats of a recycled batch; the start time is kept
+	 */
+	public void reset() {
+		for(AtomicLong counter : counters()) {
+			counter.set(0);
+		}
+		numRestored = 0;
+	}
+
+	/**
+	 * Add counts from an earlier run, e.g. from a checkpoint
+	 * Restored reads are not included in the rate of this run
+	 * @param counts Amounts to add, in the order of COUNT_NAMES
+	 */
+	public void restoreCounts(long[] counts) {
+		addCounts(counts);
+		numRestored += counts[0];
+	}
+
+	/**
+	 * Add the counts of other stats to these
+	 * @param other Stats to add
+	 */
+	public void add(MappingStats other) {
+		addCounts(other.getCounts());
+	}
+
+	/**
+	 * @return Seconds since these stats were created
+	 */
+	public double getElapsedSeconds() {
+		return (System.nanoTime() - startTime) / 1e9;
+	}
+
+	/**
+	 * @return Average number of reads processed per second since these stats were created, not counting restored reads
+	 */
+	public double getReadsPerSecond() {
+		double elapsed = getElapsedSeconds();
+		if(elapsed <= 0) return 0;
+		return (getNumDone() - numRestored) / elapsed;
+	}
+
+	/**
+	 * Print the summary of results to standard out
+	 * @param maxPctN Max proportion of N's allowed in reads, for the message
+	 */
+	public void printResults(double maxPctN) {
+		System.out.println("");
+		System.out.println("RESULTS");
+		if(getNumAdapterTrimmed() > 0) {
+			System.out.println("Reads with adapter trimmed:\t" + getNumAdapterTrimmed());
+		}
+		System.out.println("Reads mapped uniquely:\t" + getNumUniquelyMapped());
+		System.out.println("Reads mapped to multiple targets:\t" + getNumMultiMapped());
+		System.out.println("Reads unmapped:\t" + getNumUnmapped());
+		if(getNumFailedLengthFilter() > 0) {
+			System.out.println("Reads skipped because their trimmed length was outside the limits:\t" + getNumFailedLengthFilter());
+		}
+		if(getNumTooShort() > 0) {
+			System.out.println("Reads skipped because they were too short:\t" + getNumTooShort());
+		}
+		if(getNumIllegalChar() > 0) {
+			System.out.println("Reads skipped because they contain an illegal character:\t" + getNumIllegalChar());
+		}
+		if(getNumTooManyNs() > 0) {
+			System.out.println("Reads skipped because they contain > " + maxPctN + " N's:\t" + getNumTooManyNs());
+		}
+		System.out.println("");
+	}
+
+}
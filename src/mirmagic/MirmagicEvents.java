@@ -0,0 +1,91 @@
+package mirmagic;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for the hot paths of the pipeline
+ * Record with e.g. java -XX:StartFlightRecording=filename=run.jfr ...
+ * Events are only committed when a recording with the event enabled is running, so overhead is negligible otherwise
+ * Needs Java 11 or later for the jdk.jfr module
+ * @author prussell
+ *
+ */
+public final class MirmagicEvents {
+
+	private static final String CATEGORY = "miR-MaGiC";
+
+	private MirmagicEvents() {}
+
+	/**
+	 * Building the kmer index for the target sequences
+	 */
+	@Name("mirmagic.IndexBuild")
+	@Label("Index Build")
+	@Category(CATEGORY)
+	@Description("Creation of the kmer index for the target fasta")
+	@StackTrace(false)
+	public static class IndexBuild extends Event {
+		@Label("Fasta") public String fasta;
+		@Label("Targets Indexed") public int numTargets;
+		@Label("Targets Skipped") public int numSkipped;
+		@Label("Index Type") public String indexType;
+		@Label("Index Size") @Description("Distinct kmers for map and offheap, suffixes for sa, text length for fm") public long indexSize;
+		@Label("Target Bases") public long bases;
+		@Label("Min K") public int mink;
+		@Label("Max K") public int maxk;
+	}
+
+	/**
+	 * Mapping one batch of reads against the index
+	 */
+	@Name("mirmagic.MappingBatch")
+	@Label("Mapping Batch")
+	@Category(CATEGORY)
+	@Description("Kmer search for a batch of consecutive reads")
+	@StackTrace(false)
+	public static class MappingBatch extends Event {
+		@Label("Reads") public int reads;
+		@Label("Read Bases") public long bases;
+		@Label("Uniquely Mapped") public int uniquelyMapped;
+		@Label("Multi Mapped") public int multiMapped;
+		@Label("Unmapped") public int unmapped;
+		@Label("Skipped") public int skipped;
+		@Label("Records Written") public int records;
+	}
+
+	/**
+	 * Counting the reads mapped to one group of reference sequences
+	 */
+	@Name("mirmagic.GroupCount")
+	@Label("Group Count")
+	@Category(CATEGORY)
+	@Description("Combined count of reads for one group of reference sequences")
+	@StackTrace(false)
+	public static class GroupCount extends Event {
+		@Label("Sample") public String sample;
+		@Label("Group") public String group;
+		@Label("References") public int numRefs;
+		@Label("Reads Counted") public int count;
+	}
+
+	/**
+	 * Writing a block of compressed BAM data to the output stream
+	 * The block is deflated before it reaches the stream, so the duration is the I/O only, not the compression
+	 */
+	@Name("mirmagic.BamFlush")
+	@Label("BAM Flush")
+	@Category(CATEGORY)
+	@Description("Write of an already compressed BAM block to the output; the duration does not include BGZF compression")
+	@StackTrace(false)
+	public static class BamFlush extends Event {
+		@Label("Output") public String output;
+		@Label("Bytes Written") @DataAmount(DataAmount.BYTES) public long bytes;
+	}
+
+}
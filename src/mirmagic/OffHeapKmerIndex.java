@@ -0,0 +1,416 @@
+package mirmagic;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Kmer index stored outside the Java heap so that large target sets don't slow down garbage collection
+ * Kmers are packed 2 bits per base into a long with a leading sentinel bit, so kmers of different lengths
+ * never collide and the key 0 marks an empty slot
+ * Layout:
+ * - Hash table of 16 byte slots with open addressing: kmer key (8 bytes), offset of first posting (4 bytes), number of postings (4 bytes)
+ * - Flat postings array of 8 byte entries: target ID (4 bytes), position on target (4 bytes), grouped by kmer
+ * Targets are streamed into the table as they are added; their kmer occurrences wait off the heap in 12 byte
+ * entries until finish() groups them into the postings array
+ * Kmer length is limited to 31
+ * An index built for both strands stores each kmer under its canonical key, the smaller of the kmer and its
+ * reverse complement, with the strand of the target kmer in the top bit of the position; each query window is
+ * looked up once by its canonical key and matches on both strands are told apart by comparing strands
+ * @author prussell
+ *
+ */
+public class OffHeapKmerIndex implements TargetIndex {
+
+	/**
+	 * Maximum kmer length that fits in the packed representation
+	 */
+	public static final int MAX_K = 31;
+
+	private static final int SLOT_BYTES = 16;
+	private static final int POSTING_BYTES = 8;
+	private static final double MAX_LOAD = 0.7;
+	private static final byte CODE_N = BaseCodes.N;
+	private static final int FORWARD = 1; // Kmer is its canonical key
+	private static final int REVERSE = 2; // Reverse complement of the kmer is its canonical key
+	private static final int REVERSE_BIT = Integer.MIN_VALUE; // Marks postings of target kmers on the reverse strand
+
+	private static final int PENDING_BYTES = 12; // Kmer ID (4 bytes), target ID (4 bytes), position on target (4 bytes)
+	private static final int PENDING_CHUNK_POSTINGS = 1 << 20;
+	private static final int INITIAL_SLOTS = 1 << 10;
+
+	private int mink;
+	private int maxk;
+	private boolean[] lengthIndexed; // Whether any target is indexed with each kmer length
+	private ByteBuffer table;
+	private int tableMask;
+	private ByteBuffer postings;
+	private long numKmers;
+	private long numPostings;
+	private boolean bothStrands;
+	private boolean finished = false;
+	private List<ByteBuffer> pendingPostings = new ArrayList<ByteBuffer>(); // Postings added but not yet grouped by kmer, in chunks
+
+	/**
+	 * Receives the packed kmers of a sequence
+	 */
+	private interface KmerVisitor {
+		/**
+		 * @param key Packed kmer, or canonical key if searching both strands
+		 * @param pos Start position of the kmer
+		 * @param strands FORWARD, REVERSE, or both for a kmer that is its own reverse complement
+		 */
+		public void kmer(long key, int pos, int strands);
+	}
+
+	/**
+	 * Receives the matches found by a search of both strands
+	 * @author prussell
+	 *
+	 */
+	public interface StrandedMatchVisitor {
+
+		/**
+		 * @param targetId ID of the target sequence, as passed to addTarget()
+		 * @param queryPos Start position of the match on the query
+		 * @param targetPos Start position of the match on the target
+		 * @param k Match length
+		 * @param reverse True if the query kmer is the reverse complement of the target kmer
+		 */
+		public void match(int targetId, int queryPos, int targetPos, int k, boolean reverse);
+
+	}
+
+	/**
+	 * @param mink Minimum kmer length of any target
+	 * @param maxk Maximum kmer length of any target
+	 */
+	public OffHeapKmerIndex(int mink, int maxk) {
+		this(mink, maxk, false);
+	}
+
+	/**
+	 * @param mink Minimum kmer length of any target
+	 * @param maxk Maximum kmer length of any target
+	 * @param bothStrands Index canonical kmers so reverse complement matches can be searched too
+	 */
+	public OffHeapKmerIndex(int mink, int maxk, boolean bothStrands) {
+		if(maxk > MAX_K) {
+			throw new IllegalArgumentException("Off-heap kmer index supports k <= " + MAX_K + ": " + maxk);
+		}
+		if(mink < 1 || mink > maxk) {
+			throw new IllegalArgumentException("Invalid kmer lengths: " + mink + ", " + maxk);
+		}
+		this.mink = mink;
+		this.maxk = maxk;
+		lengthIndexed = new boolean[maxk + 1];
+		this.bothStrands = bothStrands;
+		table = ByteBuffer.allocateDirect(INITIAL_SLOTS * SLOT_BYTES).order(ByteOrder.nativeOrder());
+		tableMask = INITIAL_SLOTS - 1;
+	}
+
+	/**
+	 * Add the kmers of a target to the table as it is added, so no target sequences are kept
+	 * While building, each slot holds a dense ID of its kmer in place of the posting offset, and each kmer
+	 * occurrence is appended to the pending postings with that ID
+	 */
+	@Override
+	public void addTarget(final int targetId, String bases, int k) {
+		if(finished) {
+			throw new IllegalStateException("Index is already finished");
+		}
+		if(k < mink || k > maxk) {
+			throw new IllegalArgumentException("Kmer length " + k + " outside range " + mink + "-" + maxk);
+		}
+		lengthIndexed[k] = true;
+		byte[] codes = BaseCodes.encode(bases);
+		forEachKmer(codes, codes.length, k, bothStrands, new KmerVisitor() {
+			@Override
+			public void kmer(long key, int pos, int strands) {
+				int slot = findSlot(table, tableMask, key, false);
+				if(slot < 0) {
+					if(numKmers + 1 > MAX_LOAD * (tableMask + 1)) {
+						growTable();
+					}
+					slot = findSlot(table, tableMask, key, true);
+					table.putInt(slot + 8, (int) numKmers);
+					numKmers++;
+				}
+				table.putInt(slot + 12, table.getInt(slot + 12) + 1);
+				// A kmer that is its own reverse complement is stored once, as forward
+				addPendingPosting(table.getInt(slot + 8), targetId, strands == REVERSE ? pos | REVERSE_BIT : pos);
+			}
+		});
+	}
+
+	/**
+	 * Group the postings by kmer
+	 */
+	@Override
+	public void finish() {
+		if(numPostings * POSTING_BYTES > Integer.MAX_VALUE) {
+			throw new IllegalStateException("Too many kmer occurrences for off-heap index: " + numPostings);
+		}
+
+		// Assign posting offsets in table order, keeping a cursor per kmer ID to fill the postings
+		IntBuffer cursors = ByteBuffer.allocateDirect((int) Math.max(1, numKmers * 4)).order(ByteOrder.nativeOrder()).asIntBuffer();
+		int offset = 0;
+		for(int slot = 0; slot < table.capacity(); slot += SLOT_BYTES) {
+			if(table.getLong(slot) == 0) continue;
+			cursors.put(table.getInt(slot + 8), offset);
+			table.putInt(slot + 8, offset);
+			offset += table.getInt(slot + 12);
+		}
+
+		// Fill postings in the order they were added, so each kmer keeps its postings in target order
+		postings = ByteBuffer.allocateDirect((int) Math.max(POSTING_BYTES, numPostings * POSTING_BYTES)).order(ByteOrder.nativeOrder());
+		for(ByteBuffer chunk : pendingPostings) {
+			for(int p = 0; p < chunk.position(); p += PENDING_BYTES) {
+				int kmerId = chunk.getInt(p);
+				int i = cursors.get(kmerId);
+				cursors.put(kmerId, i + 1);
+				postings.putInt(i * POSTING_BYTES, chunk.getInt(p + 4));
+				postings.putInt(i * POSTING_BYTES + 4, chunk.getInt(p + 8));
+			}
+		}
+		pendingPostings = null;
+		finished = true;
+
+	}
+
+	/**
+	 * Append a kmer occurrence to the pending postings
+	 */
+	private void addPendingPosting(int kmerId, int targetId, int pos) {
+		ByteBuffer chunk = pendingPostings.isEmpty() ? null : pendingPostings.get(pendingPostings.size() - 1);
+		if(chunk == null || chunk.remaining() < PENDING_BYTES) {
+			chunk = ByteBuffer.allocateDirect(PENDING_CHUNK_POSTINGS * PENDING_BYTES).order(ByteOrder.nativeOrder());
+			pendingPostings.add(chunk);
+		}
+		chunk.putInt(kmerId);
+		chunk.putInt(targetId);
+		chunk.putInt(pos);
+		numPostings++;
+	}
+
+	/**
+	 * Double the number of slots of the table while building
+	 */
+	private void growTable() {
+		long slots = 2L * (tableMask + 1);
+		if(slots * SLOT_BYTES > Integer.MAX_VALUE) {
+			throw new IllegalStateException("Too many kmers for off-heap index: " + numKmers);
+		}
+		ByteBuffer grown = ByteBuffer.allocateDirect((int) (slots * SLOT_BYTES)).order(ByteOrder.nativeOrder());
+		int grownMask = (int) slots - 1;
+		for(int slot = 0; slot < table.capacity(); slot += SLOT_BYTES) {
+			long key = table.getLong(slot);
+			if(key == 0) continue;
+			int newSlot = findSlot(grown, grownMask, key, true);
+			grown.putInt(newSlot + 8, table.getInt(slot + 8));
+			grown.putInt(newSlot + 12, table.getInt(slot + 12));
+		}
+		table = grown;
+		tableMask = grownMask;
+	}
+
+	@Override
+	public void search(byte[] query, int length, final MatchVisitor visitor) {
+		search(query, length, true, false, new StrandedMatchVisitor() {
+			@Override
+			public void match(int targetId, int queryPos, int targetPos, int k, boolean reverse) {
+				visitor.match(targetId, queryPos, targetPos, k);
+			}
+		});
+	}
+
+	/**
+	 * Report every perfect kmer match between the query and the indexed targets on the requested strands
+	 * A query kmer that is its own reverse complement matches on both strands
+	 * @param query Codes of the query bases from BaseCodes, with no illegal characters
+	 * @param length Query length; the array can be longer
+	 * @param forward Report matches of the query to the targets
+	 * @param reverse Report matches of the reverse complement of the query to the targets; the index must be built for both strands
+	 * @param visitor Visitor to receive the matches
+	 */
+	public void search(byte[] query, int length, final boolean forward, final boolean reverse, final StrandedMatchVisitor visitor) {
+		if(reverse && !bothStrands) {
+			throw new IllegalStateException("Reverse complement search needs an index built for both strands");
+		}
+		for(int k = mink; k <= Math.min(length, maxk); k++) {
+			if(!lengthIndexed[k]) continue;
+			final int kk = k;
+			forEachKmer(query, length, k, bothStrands, new KmerVisitor() {
+				@Override
+				public void kmer(long key, int pos, int strands) {
+					int slot = findSlot(table, tableMask, key, false);
+					if(slot < 0) return;
+					int start = table.getInt(slot + 8);
+					int end = start + table.getInt(slot + 12);
+					for(int i = start; i < end; i++) {
+						int p = i * POSTING_BYTES;
+						int targetPos = postings.getInt(p + 4);
+						int targetStrand = (targetPos & REVERSE_BIT) == 0 ? FORWARD : REVERSE;
+						targetPos &= ~REVERSE_BIT;
+						// Same orientation to the canonical key means the same sequence
+						if(forward && (strands & targetStrand) != 0) {
+							visitor.match(postings.getInt(p), pos, targetPos, kk, false);
+						}
+						if(reverse && (strands & (FORWARD + REVERSE - targetStrand)) != 0) {
+							visitor.match(postings.getInt(p), pos, targetPos, kk, true);
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return True iff the index was built for both strands
+	 */
+	public boolean hasBothStrands() {
+		return bothStrands;
+	}
+
+	@Override
+	public long size() {
+		return numKmers;
+	}
+
+	/**
+	 * @return Number of bytes of off-heap memory used by the index
+	 */
+	public long sizeInBytes() {
+		return (long) table.capacity() + postings.capacity();
+	}
+
+	/**
+	 * Visit the packed key of every kmer of a given length, expanding N's to every possible base
+	 * The reverse complement is rolled along with the kmer, so canonical keys cost no extra pass
+	 * @param codes Base codes
+	 * @param length Sequence length
+	 * @param k Kmer length
+	 * @param canonical Visit canonical keys instead of the kmers
+	 * @param visitor Visitor
+	 */
+	private static void forEachKmer(byte[] codes, int length, int k, boolean canonical, KmerVisitor visitor) {
+		long mask = (1L << (2 * k)) - 1;
+		long sentinel = 1L << (2 * k);
+		int shift = 2 * (k - 1);
+		long bits = 0;
+		long rcBits = 0;
+		int lastN = -1; // Last position of an N
+		for(int i = 0; i < length; i++) {
+			byte c = codes[i];
+			if(c == CODE_N) {
+				lastN = i;
+				bits = (bits << 2) & mask;
+				rcBits = rcBits >>> 2;
+			} else {
+				bits = ((bits << 2) | c) & mask;
+				rcBits = (rcBits >>> 2) | ((long) (3 - c) << shift);
+			}
+			int start = i - k + 1;
+			if(start < 0) continue;
+			if(lastN < start) {
+				visit(bits, rcBits, sentinel, start, canonical, visitor);
+			} else {
+				expandNs(codes, start, start, k, 1L, canonical, visitor);
+			}
+		}
+	}
+
+	/**
+	 * Visit a kmer by its key, or by its canonical key and the strand it is on
+	 * @param bits Packed kmer
+	 * @param rcBits Packed reverse complement of the kmer
+	 * @param sentinel Sentinel bit for the kmer length
+	 * @param pos Kmer start position
+	 * @param canonical Visit the canonical key
+	 * @param visitor Visitor
+	 */
+	private static void visit(long bits, long rcBits, long sentinel, int pos, boolean canonical, KmerVisitor visitor) {
+		if(!canonical || bits < rcBits) {
+			visitor.kmer(sentinel | bits, pos, FORWARD);
+		} else if(rcBits < bits) {
+			visitor.kmer(sentinel | rcBits, pos, REVERSE);
+		} else {
+			visitor.kmer(sentinel | bits, pos, FORWARD | REVERSE);
+		}
+	}
+
+	/**
+	 * Visit every version of a kmer with N's replaced by each base
+	 * @param codes Base codes
+	 * @param start Kmer start position
+	 * @param i Next position to append
+	 * @param k Kmer length
+	 * @param prefix Sentinel bit followed by packed bases before position i; the sentinel is shifted into place as bases are appended
+	 * @param canonical Visit canonical keys instead of the kmers
+	 * @param visitor Visitor
+	 */
+	private static void expandNs(byte[] codes, int start, int i, int k, long prefix, boolean canonical, KmerVisitor visitor) {
+		long key = prefix;
+		for(int j = i; j < start + k; j++) {
+			if(codes[j] == CODE_N) {
+				for(int b = 0; b < 4; b++) {
+					expandNs(codes, start, j + 1, k, (key << 2) | b, canonical, visitor);
+				}
+				return;
+			}
+			key = (key << 2) | codes[j];
+		}
+		long sentinel = 1L << (2 * k);
+		long bits = key ^ sentinel;
+		visit(bits, canonical ? reverseComplement(bits, k) : bits, sentinel, start, canonical, visitor);
+	}
+
+	/**
+	 * @param bits Packed kmer
+	 * @param k Kmer length
+	 * @return Packed reverse complement of the kmer
+	 */
+	private static long reverseComplement(long bits, int k) {
+		long rtrn = 0;
+		for(int i = 0; i < k; i++) {
+			rtrn = (rtrn << 2) | (3 - (bits & 3));
+			bits >>>= 2;
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Find the slot holding a key
+	 * @param buffer Table
+	 * @param mask Number of slots minus one
+	 * @param key Packed kmer
+	 * @param insert Whether to claim an empty slot if the key is not present
+	 * @return Byte offset of the slot, or -1 if not present and not inserting
+	 */
+	private static int findSlot(ByteBuffer buffer, int mask, long key, boolean insert) {
+		int slot = hash(key) & mask;
+		while(true) {
+			int offset = slot * SLOT_BYTES;
+			long k = buffer.getLong(offset);
+			if(k == key) return offset;
+			if(k == 0) {
+				if(!insert) return -1;
+				buffer.putLong(offset, key);
+				return offset;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+}
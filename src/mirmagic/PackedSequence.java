@@ -0,0 +1,172 @@
+package mirmagic;
+
+/**
+ * A nucleotide sequence stored with 2 bits per base plus a bit mask of N positions
+ * Bases are stored upper case; the only legal characters are A, C, G, T and N in either case
+ * The hash code is computed once when the sequence is created and equals the hash code of a Sequence
+ * with the same name and upper case bases
+ * Subsequences are views that share the packed arrays, and the String of bases is only built if asked for
+ * @author prussell
+ *
+ */
+public class PackedSequence extends Sequence {
+
+	private static final char[] BASES = {'A', 'C', 'G', 'T'};
+
+	private long[] packed; // 32 bases per word, first base in the lowest bits
+	private long[] nMask; // One bit per base, set for N's, or null if there are no N's
+	private int start; // Position of the first base in the packed arrays
+	private int length;
+	private int hash;
+	private String bases; // Bases as a String, built the first time they are asked for
+
+	/**
+	 * @param name Sequence name
+	 * @param seq Nucleotide sequence
+	 * @throws IllegalArgumentException if the sequence contains a character other than A, C, G, T or N
+	 */
+	public PackedSequence(String name, CharSequence seq) {
+		super(name, null);
+		length = seq.length();
+		packed = new long[(length + 31) >>> 5];
+		int basesHash = 0;
+		for(int i = 0; i < length; i++) {
+			char c = seq.charAt(i);
+			byte code = BaseCodes.code(c);
+			if(code == BaseCodes.ILLEGAL) {
+				throw new IllegalArgumentException("Illegal character in sequence " + name + ": " + c);
+			}
+			if(code == BaseCodes.N) {
+				if(nMask == null) {
+					nMask = new long[(length + 63) >>> 6];
+				}
+				nMask[i >>> 6] |= 1L << (i & 63);
+				basesHash = 31 * basesHash + 'N';
+				continue;
+			}
+			packed[i >>> 5] |= (long) code << ((i & 31) << 1);
+			basesHash = 31 * basesHash + BASES[code];
+		}
+		hash = hashCode(name, basesHash);
+	}
+
+	/**
+	 * @param seq Sequence to pack
+	 * @throws IllegalArgumentException if the sequence contains a character other than A, C, G, T or N
+	 */
+	public PackedSequence(Sequence seq) {
+		this(seq.getName(), seq.getSequenceBases());
+	}
+
+	/**
+	 * View of part of another packed sequence
+	 */
+	private PackedSequence(String name, PackedSequence other, int start, int end) {
+		super(name, null);
+		packed = other.packed;
+		nMask = other.nMask;
+		this.start = other.start + start;
+		length = end - start;
+		int basesHash = 0;
+		for(int i = 0; i < length; i++) {
+			basesHash = 31 * basesHash + charAt(i);
+		}
+		hash = hashCode(name, basesHash);
+	}
+
+	/**
+	 * @param pos Position on this sequence
+	 * @return Code of the base at the position from BaseCodes
+	 */
+	public byte baseCode(int pos) {
+		int i = start + pos;
+		if(nMask != null && (nMask[i >>> 6] & (1L << (i & 63))) != 0) {
+			return BaseCodes.N;
+		}
+		return (byte) ((packed[i >>> 5] >>> ((i & 31) << 1)) & 3);
+	}
+
+	/**
+	 * @param pos Position on this sequence
+	 * @return Upper case base at the position
+	 */
+	public char charAt(int pos) {
+		byte code = baseCode(pos);
+		return code == BaseCodes.N ? 'N' : BASES[code];
+	}
+
+	/**
+	 * Copy the base codes into an array, e.g. to pass to a TargetIndex
+	 * @param codes Array to fill, at least as long as the sequence
+	 */
+	public void getBaseCodes(byte[] codes) {
+		for(int i = 0; i < length; i++) {
+			codes[i] = baseCode(i);
+		}
+	}
+
+	@Override
+	public String getSequenceBases() {
+		String s = bases;
+		if(s == null) {
+			char[] chars = new char[length];
+			for(int i = 0; i < length; i++) {
+				chars[i] = charAt(i);
+			}
+			s = new String(chars);
+			bases = s;
+		}
+		return s;
+	}
+
+	@Override
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Get a view of part of this sequence without copying the bases
+	 */
+	@Override
+	public Sequence getSubSequence(String name, int start, int end) {
+		int s = Math.max(start, 0);
+		int e = Math.max(s, Math.min(end, length));
+		return new PackedSequence(name, this, s, e);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if(!(o instanceof PackedSequence)) {
+			return super.equals(o);
+		}
+		if(this == o) {
+			return true;
+		}
+		PackedSequence other = (PackedSequence)o;
+		if(hash != other.hash || length != other.length) {
+			return false;
+		}
+		if(getName() == null ? other.getName() != null : !getName().equals(other.getName())) {
+			return false;
+		}
+		for(int i = 0; i < length; i++) {
+			if(baseCode(i) != other.baseCode(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	/**
+	 * @return Approximate bytes used by the packed arrays, which views share
+	 */
+	public long packedSizeInBytes() {
+		return 8L * packed.length + (nMask == null ? 0 : 8L * nMask.length);
+	}
+
+}
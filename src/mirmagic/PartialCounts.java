@@ -0,0 +1,225 @@
+package mirmagic;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Counts from mapping one shard of a fastq file with PerfectKmerSearch, to merge with the other shards
+ * Holds the read counts of the summary and the number of reads mapped to each group, where a read mapped to
+ * several members of a group is counted once for the group as in CombineCountsByGroup
+ * Reads are independent, so the counts of all shards add up exactly to the counts of the whole file
+ * File format is tab delimited, one count per line:
+ * shard index count mode, fastq name length, max_pct_n value, reads name count, group name count
+ * @author prussell
+ *
+ */
+public class PartialCounts {
+
+	private static final String HEADER = "#PerfectKmerSearch partial counts";
+
+	private int shardIndex;
+	private int numShards;
+	private String shardMode;
+	private String fastqName; // File name without directory, so shards mapped on different machines match
+	private long fastqLength; // -1 if not a regular file
+	private double maxPctN;
+	private long[] counts = new long[MappingStats.COUNT_NAMES.length];
+	private String[] groupNames;
+	private long[] groupCounts;
+
+	/**
+	 * @param shardIndex Index of the shard
+	 * @param numShards Number of shards
+	 * @param shardMode How the fastq was split into shards
+	 * @param fastqName Name of the fastq file
+	 * @param fastqLength Length of the fastq file, or -1 if not a regular file
+	 * @param maxPctN Max proportion of Ns in reads that were searched
+	 * @param stats Counts of the reads in the shard
+	 * @param groupNames Group names in group ID order
+	 * @param groupCounts Number of reads mapped to each group
+	 */
+	public PartialCounts(int shardIndex, int numShards, String shardMode, String fastqName, long fastqLength, double maxPctN, MappingStats stats, List<String> groupNames, long[] groupCounts) {
+		if(groupNames.size() != groupCounts.length) {
+			throw new IllegalArgumentException("Need one count per group");
+		}
+		this.shardIndex = shardIndex;
+		this.numShards = numShards;
+		this.shardMode = shardMode;
+		this.fastqName = fastqName;
+		this.fastqLength = fastqLength;
+		this.maxPctN = maxPctN;
+		this.counts = stats.getCounts();
+		this.groupNames = groupNames.toArray(new String[0]);
+		this.groupCounts = groupCounts.clone();
+	}
+
+	private PartialCounts() {}
+
+	/**
+	 * Write the counts
+	 * @param file Output file
+	 * @throws IOException
+	 */
+	public void write(String file) throws IOException {
+		BufferedWriter w = new BufferedWriter(new FileWriter(file));
+		w.write(HEADER + "\n");
+		w.write("shard\t" + shardIndex + "\t" + numShards + "\t" + shardMode + "\n");
+		w.write("fastq\t" + fastqName + "\t" + fastqLength + "\n");
+		w.write("max_pct_n\t" + maxPctN + "\n");
+		for(int i = 0; i < counts.length; i++) {
+			w.write("reads\t" + MappingStats.COUNT_NAMES[i] + "\t" + counts[i] + "\n");
+		}
+		for(int g = 0; g < groupNames.length; g++) {
+			w.write("group\t" + groupNames[g] + "\t" + groupCounts[g] + "\n");
+		}
+		w.close();
+	}
+
+	/**
+	 * Read counts written with write()
+	 * @param file Partial counts file
+	 * @return The counts
+	 * @throws IOException
+	 */
+	public static PartialCounts read(String file) throws IOException {
+		BufferedReader r = new BufferedReader(new FileReader(file));
+		String line = r.readLine();
+		if(line == null || !line.equals(HEADER)) {
+			r.close();
+			throw new IllegalArgumentException("Not a partial counts file: " + file);
+		}
+		PartialCounts rtrn = new PartialCounts();
+		List<String> countNames = Arrays.asList(MappingStats.COUNT_NAMES);
+		List<String> groupNames = new ArrayList<String>();
+		List<Long> groupCounts = new ArrayList<Long>();
+		boolean hasShard = false;
+		boolean hasFastq = false;
+		LineTokenizer p = new LineTokenizer();
+		while((line = r.readLine()) != null) {
+			if(line.isEmpty()) continue;
+			p.tokenize(line, '\t');
+			if(p.fieldEquals(0, "shard") && p.getFieldCount() == 4) {
+				rtrn.shardIndex = p.asInt(1);
+				rtrn.numShards = p.asInt(2);
+				rtrn.shardMode = p.asString(3);
+				hasShard = true;
+			} else if(p.fieldEquals(0, "fastq") && p.getFieldCount() == 3) {
+				rtrn.fastqName = p.asString(1);
+				rtrn.fastqLength = p.asLong(2);
+				hasFastq = true;
+			} else if(p.fieldEquals(0, "max_pct_n") && p.getFieldCount() == 2) {
+				rtrn.maxPctN = p.asDouble(1);
+			} else if(p.fieldEquals(0, "reads") && p.getFieldCount() == 3 && countNames.contains(p.asString(1))) {
+				rtrn.counts[countNames.indexOf(p.asString(1))] = p.asLong(2);
+			} else if(p.fieldEquals(0, "group") && p.getFieldCount() == 3) {
+				groupNames.add(p.asString(1));
+				groupCounts.add(Long.valueOf(p.asLong(2)));
+			} else {
+				r.close();
+				throw new IllegalArgumentException("Invalid line in partial counts file " + file + ": " + line);
+			}
+		}
+		r.close();
+		if(!hasShard || !hasFastq) {
+			throw new IllegalArgumentException("Partial counts file is missing the shard or fastq line: " + file);
+		}
+		if(rtrn.numShards < 1 || rtrn.shardIndex < 0 || rtrn.shardIndex >= rtrn.numShards) {
+			throw new IllegalArgumentException("Invalid shard " + rtrn.shardIndex + " of " + rtrn.numShards + " in " + file);
+		}
+		rtrn.groupNames = groupNames.toArray(new String[0]);
+		rtrn.groupCounts = new long[groupCounts.size()];
+		for(int g = 0; g < rtrn.groupCounts.length; g++) {
+			rtrn.groupCounts[g] = groupCounts.get(g).longValue();
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Add the counts of another shard of the same fastq to these
+	 * @param other Counts of another shard
+	 */
+	public void add(PartialCounts other) {
+		if(other.numShards != numShards || !other.shardMode.equals(shardMode)) {
+			throw new IllegalArgumentException("Shards were made differently: " + numShards + " " + shardMode + " shards and " + other.numShards + " " + other.shardMode + " shards");
+		}
+		if(!other.fastqName.equals(fastqName) || other.fastqLength != fastqLength) {
+			throw new IllegalArgumentException("Shards are from different fastq files: " + fastqName + " and " + other.fastqName);
+		}
+		if(other.maxPctN != maxPctN) {
+			throw new IllegalArgumentException("Shards were mapped with different max proportions of N's: " + maxPctN + " and " + other.maxPctN);
+		}
+		if(!Arrays.equals(other.groupNames, groupNames)) {
+			throw new IllegalArgumentException("Shards were counted with different group tables");
+		}
+		for(int i = 0; i < counts.length; i++) {
+			counts[i] += other.counts[i];
+		}
+		for(int g = 0; g < groupCounts.length; g++) {
+			groupCounts[g] += other.groupCounts[g];
+		}
+	}
+
+	/**
+	 * Write the group counts in the same format as CombineCountsByGroup with one bam
+	 * @param file Output table
+	 * @throws IOException
+	 */
+	public void writeGroupCounts(String file) throws IOException {
+		BufferedWriter w = new BufferedWriter(new FileWriter(file));
+		for(int g = 0; g < groupNames.length; g++) {
+			w.write(groupNames[g] + "\t" + groupCounts[g] + "\n");
+		}
+		w.close();
+	}
+
+	/**
+	 * @return The read counts as mapping stats
+	 */
+	public MappingStats getStats() {
+		MappingStats rtrn = new MappingStats();
+		rtrn.addCounts(counts);
+		return rtrn;
+	}
+
+	public int getShardIndex() {return shardIndex;}
+	public int getNumShards() {return numShards;}
+	public double getMaxPctN() {return maxPctN;}
+
+	public static void main(String[] args) throws IOException {
+
+		CommandLineParser p = new CommandLineParser();
+		p.setProgramDescription("Merge the partial counts of all shards of a fastq file mapped with PerfectKmerSearch -pc");
+		p.addStringListArg("-p", "Partial counts file of one shard; repeat for each shard", true);
+		p.addStringArg("-o", "Output counts table. Line format: group count", true);
+		p.parse(args, true);
+		List<String> files = p.getStringListArg("-p");
+		PartialCounts merged = read(files.get(0));
+		boolean[] seen = new boolean[merged.numShards];
+		seen[merged.shardIndex] = true;
+		for(int i = 1; i < files.size(); i++) {
+			PartialCounts shard = read(files.get(i));
+			if(shard.numShards == merged.numShards && seen[shard.shardIndex]) {
+				throw new IllegalArgumentException("Shard " + shard.shardIndex + " is given twice: " + files.get(i));
+			}
+			merged.add(shard);
+			seen[shard.shardIndex] = true;
+		}
+		for(int s = 0; s < seen.length; s++) {
+			if(!seen[s]) {
+				throw new IllegalArgumentException("Missing partial counts of shard " + s + " of " + merged.numShards);
+			}
+		}
+		merged.writeGroupCounts(p.getStringArg("-o"));
+		System.out.println("Merged " + files.size() + " shards of " + merged.fastqName);
+		merged.getStats().printResults(merged.maxPctN);
+		System.out.println("Wrote counts of " + merged.groupNames.length + " groups to " + p.getStringArg("-o"));
+
+	}
+
+}
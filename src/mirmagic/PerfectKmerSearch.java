@@ -1,21 +1,34 @@
 package mirmagic;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
-import net.sf.samtools.BAMFileWriter;
 import net.sf.samtools.Cigar;
 import net.sf.samtools.CigarElement;
 import net.sf.samtools.CigarOperator;
 import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterImpl;
 import net.sf.samtools.SAMRecord;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 
@@ -23,7 +36,8 @@ import org.apache.commons.lang3.builder.HashCodeBuilder;
  * A query is considered to match a target if they share a perfect kmer match of the specified length
  * Case is ignored
  * Ns are treated as wildcards that everything matches
- * Reverse complement matches are NOT included
+ * Reverse complement matches are NOT included unless the search strand is set to both strands or the reverse
+ * strand; records of reverse complement matches have the negative strand flag and reverse complemented bases
  * Transcripts shorter than the specified kmer length are allowed to have shorter matches with queries
  * @author prussell
  *
@@ -61,8 +75,7 @@ public class PerfectKmerSearch {
 		}
 		
 		public int hashCode() {
-			String s = toString() + ";" + seq.getSequenceBases();
-			return s.hashCode();
+			return 31 * seq.hashCode() + pos;
 		}
 		
 		public Sequence getSequence() {return seq;}
@@ -87,6 +100,7 @@ public class PerfectKmerSearch {
 		private Sequence query; // Query sequence
 		private KmerSubsequence queryKmer; // Kmer sequence and start position of kmer on query sequence
 		private SequencePos target; // Start position of match on target sequence
+		private boolean reverse; // Query kmer is the reverse complement of the target kmer
 		
 		/**
 		 * @param queryName Query sequence name
@@ -94,9 +108,21 @@ public class PerfectKmerSearch {
 		 * @param target Target sequence and start position
 		 */
 		public IndividualKmerMatch(Sequence query, KmerSubsequence queryKmer, SequencePos target) {
+			this(query, queryKmer, target, false);
+		}
+		
+		/**
+		 * @param queryName Query sequence name
+		 * @param queryKmer Kmer from query sequence that matches the target, which stores the start position on the query,
+		 * or the reverse complement of the kmer and its start position on the reverse complement of the query if reverse is true
+		 * @param target Target sequence and start position
+		 * @param reverse True if the query kmer matches the reverse complement of the target
+		 */
+		public IndividualKmerMatch(Sequence query, KmerSubsequence queryKmer, SequencePos target, boolean reverse) {
 			this.query = query;
 			this.queryKmer = queryKmer;
 			this.target = target;
+			this.reverse = reverse;
 		}
 		
 		public int getK() {return queryKmer.getSeq().length();}
@@ -109,7 +135,7 @@ public class PerfectKmerSearch {
 		}
 		
 		public String toString() {
-			return query.getName() + ":" + queryKmer.getOrigSeqPos() + "->" + target.toString();
+			return query.getName() + ":" + queryKmer.getOrigSeqPos() + (reverse ? "->-" : "->") + target.toString();
 		}
 		
 		public boolean equals(Object o) {
@@ -126,6 +152,7 @@ public class PerfectKmerSearch {
 		public String getQueryName() {return query.getName();}
 		public int getTargetStartPos() {return target.getPos();}
 		public String getTargetName() {return target.getSequence().getName();}
+		public boolean isReverse() {return reverse;}
 		
 	}
 	
@@ -177,16 +204,19 @@ public class PerfectKmerSearch {
 		private SequencePos queryMatchStart;
 		private SequencePos targetMatchStart;
 		private int matchLength;
+		private boolean reverse;
 		
 		/**
 		 * @param queryMatchStart Query sequence and start position of match
 		 * @param targetMatchStart Target sequence and start position of match
 		 * @param matchLength Match length
+		 * @param reverse True if the query matches the reverse complement of the target
 		 */
-		public QueryTargetMatch(SequencePos queryMatchStart, SequencePos targetMatchStart, int matchLength) {
+		public QueryTargetMatch(SequencePos queryMatchStart, SequencePos targetMatchStart, int matchLength, boolean reverse) {
 			this.queryMatchStart = queryMatchStart;
 			this.targetMatchStart = targetMatchStart;
 			this.matchLength = matchLength;
+			this.reverse = reverse;
 		}
 		
 		/**
@@ -196,7 +226,7 @@ public class PerfectKmerSearch {
 		public SAMRecord toSAMRecord() {
 			// Populate cigar
 			Cigar cigar = new Cigar();
-			int queryStart = queryMatchStart.getPos();
+			int queryStart = queryMatchStart.getPos(); // On the reverse complement of the query for a reverse match
 			if(queryStart > 0) {
 				// Soft clip beginning of read
 				CigarElement s = new CigarElement(queryStart, CigarOperator.S);
@@ -220,7 +250,9 @@ public class PerfectKmerSearch {
 			rtrn.setReadPairedFlag(false);
 			rtrn.setReferenceName(targetMatchStart.getSequence().getName());
 			rtrn.setMappingQuality(255); // mapping quality unknown
-			rtrn.setReadBases(queryMatchStart.getSequence().getSequenceBases().getBytes());;
+			String bases = queryMatchStart.getSequence().getSequenceBases();
+			rtrn.setReadBases((reverse ? BaseCodes.reverseComplement(bases) : bases).getBytes());
+			rtrn.setReadNegativeStrandFlag(reverse);
 			
 			return rtrn;
 		}
@@ -254,32 +286,23 @@ public class PerfectKmerSearch {
 	
 	/**
 	 * Get the first kmer match of this query to each of its targets
-	 * @param query Query sequence
+	 * @param query Query sequence, already validated
+	 * @param codes Codes of the query bases from BaseCodes
 	 * @return The first match to each target
 	 */
-	private Collection<QueryTargetMatch> firstKmerMatchEachTarget(Sequence query) {
-		Map<QueryTargetPair, QueryTargetMatch> matches = firstKmerMatchEachQueryTargetPair(getIndividualKmerMatches(query));
+	private Collection<QueryTargetMatch> firstKmerMatchEachTarget(Sequence query, byte[] codes) {
+		Map<QueryTargetPair, QueryTargetMatch> matches = firstKmerMatchEachQueryTargetPair(getIndividualKmerMatches(query, codes));
 		return matches.values();
 	}
 	
 	/**
 	 * Get the first kmer match of this query to each of its targets as SAM records
-	 * @param record Query read
-	 * @return The first match to each target as SAM records
-	 */	
-	private Collection<SAMRecord> samRecordFirstKmerMatchEachTarget(FastqSequence record) {
-		String queryName = record.getName();
-		String querySeq = record.getSequence();
-		return samRecordFirstKmerMatchEachTarget(new Sequence(queryName, querySeq));
-	}
-	
-	/**
-	 * Get the first kmer match of this query to each of its targets as SAM records
-	 * @param query Query sequence
+	 * @param query Query sequence, already validated
+	 * @param codes Codes of the query bases from BaseCodes
 	 * @return The first match to each target as SAM records
 	 */
-	private Collection<SAMRecord> samRecordFirstKmerMatchEachTarget(Sequence query) {
-		Collection<QueryTargetMatch> matches = firstKmerMatchEachTarget(query);
+	private Collection<SAMRecord> samRecordFirstKmerMatchEachTarget(Sequence query, byte[] codes) {
+		Collection<QueryTargetMatch> matches = firstKmerMatchEachTarget(query, codes);
 		Collection<SAMRecord> rtrn = new ArrayList<SAMRecord>();
 		for(QueryTargetMatch match : matches) {
 			rtrn.add(match.toSAMRecord());
@@ -287,77 +310,532 @@ public class PerfectKmerSearch {
 		return rtrn;
 	}
 	
+	/**
+	 * Trims, validates and searches reads one at a time, counting the outcomes
+	 * Keeps a reusable buffer of base codes and a flight recorder batch event, so use one per thread or input file
+	 * and call it from one thread at a time
+	 * The batch event of each batch of reads starts when the batch is ready to match, so time spent waiting for
+	 * batches is not included
+	 * @author prussell
+	 *
+	 */
+	private class ReadMapper implements MappingPipeline.BatchMatcher {
+		
+		private byte[] codes = new byte[256];
+		private MirmagicEvents.MappingBatch batchEvent;
+		private int[] groupStamps; // Number of the last read counted for each group
+		private int numReadsCounted = 0;
+		
+		public ReadMapper() {
+			if(groupNames != null) {
+				groupStamps = new int[groupNames.size()];
+				Arrays.fill(groupStamps, -1);
+			}
+		}
+		
+		/**
+		 * Trim, validate and search a read
+		 * @param query The read
+		 * @param stats Stats to count the read in
+		 * @param histograms Histograms to add the read to, or null
+		 * @return The first match to each target as SAM records; empty if the read was skipped or unmapped
+		 */
+		public Collection<SAMRecord> map(FastqSequence query, MappingStats stats, ReadLengthHistograms histograms) {
+			stats.incrementDone();
+			int length = query.getLength();
+			int rawLength = length;
+			batchEvent.reads++;
+			batchEvent.bases += length;
+			int status = BaseCodes.VALID;
+			// Trimming only moves the end of the record, so the first length bases of this view are the trimmed read
+			CharSequence bases = query.getSequenceView();
+			if(adapterTrimmer != null) {
+				int trimmedLength = adapterTrimmer.trimmedLength(bases);
+				if(trimmedLength < length) {
+					stats.incrementAdapterTrimmed();
+				}
+				if(!adapterTrimmer.passesLengthFilter(trimmedLength)) {
+					stats.incrementFailedLengthFilter();
+					status = STATUS_FAILED_LENGTH_FILTER;
+				} else if(trimmedLength < length) {
+					// Only moves the end of the record; the bases are copied if the read is mapped
+					query.trimEndBases(length - trimmedLength);
+				}
+				// Filtered reads are counted in the histograms at the trimmed length the filter was applied to
+				length = trimmedLength;
+			}
+			if(status == BaseCodes.VALID) {
+				if(codes.length < length) {
+					codes = new byte[2 * length];
+				}
+				status = BaseCodes.validateAndEncode(bases, length, mink, MAX_PCT_N, codes);
+			}
+			Collection<SAMRecord> alignments = Collections.emptyList();
+			if(status == BaseCodes.VALID) {
+				alignments = samRecordFirstKmerMatchEachTarget(new Sequence(query.getName(), query.getSequence()), codes);
+				stats.addMapped(alignments.size());
+				if(histograms != null) {
+					histograms.addMappedRead(rawLength, length, alignments.size());
+					for(SAMRecord alignment : alignments) {
+						histograms.addMatch(alignment.getAlignmentEnd() - alignment.getAlignmentStart() + 1);
+					}
+				}
+				if(alignments.size() == 0) batchEvent.unmapped++;
+				if(alignments.size() == 1) batchEvent.uniquelyMapped++;
+				if(alignments.size() > 1) batchEvent.multiMapped++;
+				batchEvent.records += alignments.size();
+			} else {
+				if(status == BaseCodes.TOO_SHORT) stats.incrementTooShort();
+				if(status == BaseCodes.ILLEGAL_CHAR) stats.incrementIllegalChar();
+				if(status == BaseCodes.TOO_MANY_NS) stats.incrementTooManyNs();
+				if(histograms != null) {
+					histograms.addRead(rawLength, length, histogramOutcome(status));
+				}
+				batchEvent.skipped++;
+			}
+			return alignments;
+		}
+		
+		/**
+		 * Start the flight recorder event of a batch of reads; call once the batch has been taken from its queue
+		 */
+		public void beginBatch() {
+			batchEvent = new MirmagicEvents.MappingBatch();
+			batchEvent.begin();
+		}
+		
+		/**
+		 * Commit the flight recorder event of the batch
+		 */
+		public void endBatch() {
+			batchEvent.commit();
+		}
+		
+		/**
+		 * Map the reads in a batch, counting them in the batch
+		 */
+		@Override
+		public void match(ReadBatch batch) {
+			List<SAMRecord> alignments = batch.getAlignments();
+			ReadLengthHistograms histograms = histogramFile == null ? null : batch.getHistograms();
+			long[] groupCounts = groupNames == null ? null : batch.getGroupCounts(groupNames.size());
+			beginBatch();
+			for(int i = 0; i < batch.size(); i++) {
+				Collection<SAMRecord> readAlignments = map(batch.get(i), batch.getStats(), histograms);
+				if(groupCounts != null) {
+					countGroups(readAlignments, groupCounts);
+				}
+				alignments.addAll(readAlignments);
+			}
+			endBatch();
+		}
+		
+		/**
+		 * Count a read once for each group it is mapped to, however many members of the group it matches
+		 * @param alignments Alignments of the read
+		 * @param groupCounts Counts to add to
+		 */
+		private void countGroups(Collection<SAMRecord> alignments, long[] groupCounts) {
+			int read = numReadsCounted++;
+			for(SAMRecord alignment : alignments) {
+				for(int group : groupsOfTarget[alignment.getReferenceIndex().intValue()]) {
+					if(groupStamps[group] != read) {
+						groupStamps[group] = read;
+						groupCounts[group]++;
+					}
+				}
+			}
+		}
+		
+	}
+	
 	/**
 	 * Iterate through fastq file and for each query and target, write first kmer match to a bam file
-	 * @param queryFastq Query fastq file
-	 * @param outputBam Bam file to write
+	 * Reading, matching and writing run on separate threads connected by bounded queues of read batches
+	 * Records are in fastq order unless the output order is set to ORDER_COMPLETION
+	 * If a checkpoint file is set, the run continues from the checkpoint in it if there is one, and
+	 * checkpoints are written periodically; the checkpoint file is deleted when the run is finished
+	 * @param queryFastq Query fastq file, named pipe, or FastqParser.STDIN
+	 * @param outputBam Bam file to write, or SamtoolsUtils.STDOUT
+	 * @param format Output format, one of the formats in SamtoolsUtils
+	 * @param numThreads Number of threads for matching
 	 * @throws IOException
 	 */
-	private void writeFirstKmerMatchEachTarget(String queryFastq, String outputBam) throws IOException {
+	private void writeFirstKmerMatchEachTarget(final String queryFastq, final String outputBam, final String format, int numThreads) throws IOException {
 		
 		System.out.println("");
 		System.out.println("Writing matches for reads in " + queryFastq + " to " + outputBam + "...");
 		
-		BAMFileWriter writer = new BAMFileWriter(new File(outputBam));
-		writer.setSortOrder(SAMFileHeader.SortOrder.unsorted, false);
-		writer.setHeader(samHeader);
+		final MappingStats stats = new MappingStats();
+		final ReadLengthHistograms histograms = histogramFile == null ? null : new ReadLengthHistograms();
+		final long[] groupCounts = groupNames == null ? null : new long[groupNames.size()];
 		FastqParser reader = new FastqParser();
-		reader.start(new File(queryFastq));
-		int numTooShort = 0;
-		int numIllegalChar = 0;
-		int numUniquelyMapped = 0;
-		int numMultiMapped = 0;
-		int numUnmapped = 0;
-		int numDone = 0;
-		int numTooManyNs = 0;
-		while(reader.hasNext()) {
-			FastqSequence query = reader.next();
-			numDone++;
-			if(numDone % 1000000 == 0) {
-				System.out.println("Finished " + numDone + " reads");
+		final SAMFileWriter writer;
+		if(checkpointFile != null) {
+			if(FastqParser.isStdin(queryFastq) || !new File(queryFastq).isFile() || outputBam.equals(SamtoolsUtils.STDOUT)) {
+				throw new IllegalArgumentException("Checkpoints need a regular fastq file and an output file");
 			}
-			try {
-				Collection<SAMRecord> alignments = samRecordFirstKmerMatchEachTarget(query);
-				if(alignments.size() == 0) numUnmapped++;
-				if(alignments.size() == 1) numUniquelyMapped++;
-				if(alignments.size() > 1) numMultiMapped++;
-				for(SAMRecord alignment : alignments) {
-					writer.addAlignment(alignment);
+			if(!outputOrder.equals(ORDER_INPUT)) {
+				throw new IllegalArgumentException("Checkpoints need output in input order");
+			}
+			if(numShards > 1 || partialCountsFile != null) {
+				throw new IllegalArgumentException("Checkpoints cannot be combined with shards or partial counts; rerun the shard instead");
+			}
+			MappingCheckpoint checkpoint = MappingCheckpoint.read(checkpointFile);
+			if(checkpoint != null) {
+				checkpoint.checkMatches(queryFastq, outputBam, format, histograms != null);
+				stats.restoreCounts(checkpoint.getCounts());
+				if(histograms != null) {
+					histograms.merge(checkpoint.getHistograms());
 				}
-			} catch(SequenceTooShortException e) {
-				numTooShort++;
-			} catch(IllegalCharacterException e) {
-				numIllegalChar++;
-			} catch(TooManyNsException e) {
-				numTooManyNs++;
+				System.out.println("Resuming from checkpoint " + checkpointFile + " after " + stats.getNumDone() + " reads");
+				reader.start(new File(queryFastq), checkpoint.getFastqOffset());
+				writer = new CheckpointedSamWriter(outputBam, format, samHeader, checkpoint.getOutputLength());
+			} else {
+				reader.start(queryFastq);
+				writer = new CheckpointedSamWriter(outputBam, format, samHeader);
 			}
+		} else {
+			startShard(reader, queryFastq);
+			writer = SamtoolsUtils.createWriter(outputBam, format, samHeader);
 		}
-		System.out.println("");
-		System.out.println("RESULTS");
-		System.out.println("Reads mapped uniquely:\t" + numUniquelyMapped);
-		System.out.println("Reads mapped to multiple targets:\t" + numMultiMapped);
-		System.out.println("Reads unmapped:\t" + numUnmapped);
-		if(numTooShort > 0) {
-			System.out.println("Reads skipped because they were too short:\t" + numTooShort);
+		PrometheusTextfileExporter exporter = null;
+		if(metricsFile != null) {
+			exporter = new PrometheusTextfileExporter(metricsFile, stats, FastqParser.isStdin(queryFastq) ? "stdin" : new File(queryFastq).getName(), indexType, indexSize());
+			exporter.start(metricsIntervalSeconds);
 		}
-		if(numIllegalChar > 0) {
-			System.out.println("Reads skipped because they contain an illegal character:\t" + numIllegalChar);
+		MappingPipeline pipeline = new MappingPipeline(batchSize, queueDepth, numThreads, outputOrder.equals(ORDER_INPUT));
+		if(exporter != null) {
+			exporter.setPipeline(pipeline);
 		}
-		if(numTooManyNs > 0) {
-			System.out.println("Reads skipped because they contain > " + MAX_PCT_N + " N's:\t" + numTooManyNs);
+		// Totals are kept of the reads whose records are written, so they match the output at each checkpoint
+		pipeline.setBatchListener(new MappingPipeline.BatchListener() {
+			private long readsSinceCheckpoint = 0;
+			@Override
+			public void batchWritten(ReadBatch batch) throws IOException {
+				long before = stats.getNumDone();
+				stats.add(batch.getStats());
+				if(batch.hasHistograms()) {
+					histograms.merge(batch.getHistograms());
+				}
+				if(groupCounts != null) {
+					long[] batchCounts = batch.getGroupCounts(groupCounts.length);
+					for(int g = 0; g < groupCounts.length; g++) {
+						groupCounts[g] += batchCounts[g];
+					}
+				}
+				if(before / 1000000 != stats.getNumDone() / 1000000) {
+					System.out.println("Finished " + (stats.getNumDone() / 1000000 * 1000000) + " reads");
+				}
+				readsSinceCheckpoint += batch.size();
+				if(checkpointFile != null && readsSinceCheckpoint >= checkpointInterval) {
+					long outputLength = ((CheckpointedSamWriter) writer).checkpoint();
+					new MappingCheckpoint(queryFastq, batch.getEndOffset(), outputBam, format, outputLength, stats, histograms).write(checkpointFile);
+					readsSinceCheckpoint = 0;
+				}
+			}
+		});
+		List<ReadMapper> mappers = new ArrayList<ReadMapper>();
+		for(int i = 0; i < numThreads; i++) {
+			mappers.add(new ReadMapper());
+		}
+		pipeline.run(reader, mappers, writer);
+		if(exporter != null) {
+			exporter.stop();
+		}
+		stats.printResults(MAX_PCT_N);
+		pipeline.printQueueStats();
+		if(histograms != null) {
+			histograms.write(histogramFile);
+			System.out.println("Wrote read length histograms to " + histogramFile);
+		}
+		if(partialCountsFile != null) {
+			File fastqFile = new File(queryFastq);
+			long fastqLength = fastqFile.isFile() ? fastqFile.length() : -1;
+			new PartialCounts(shardIndex, numShards, shardMode, fastqFile.getName(), fastqLength, MAX_PCT_N, stats, groupNames, groupCounts).write(partialCountsFile);
+			System.out.println("Wrote partial counts of shard " + shardIndex + " of " + numShards + " to " + partialCountsFile);
 		}
-		System.out.println("");
 		reader.close();
 		writer.close();
+		if(checkpointFile != null) {
+			new File(checkpointFile).delete();
+		}
+		
+	}
+	
+	/**
+	 * Start reading the shard of a fastq file that this run maps
+	 * A byte shard runs from the first record at or after its share of the file to the first record of the next
+	 * shard; a record shard is every numShards-th record, so it can be read from a pipe
+	 * @param reader Reader to start
+	 * @param queryFastq Fastq file, named pipe, or FastqParser.STDIN
+	 * @throws IOException
+	 */
+	private void startShard(FastqParser reader, String queryFastq) throws IOException {
+		if(numShards == 1) {
+			reader.start(queryFastq);
+			return;
+		}
+		System.out.println("Mapping shard " + shardIndex + " of " + numShards + " by " + shardMode);
+		if(shardMode.equals(SHARD_RECORDS)) {
+			reader.start(queryFastq);
+			reader.setShard(shardIndex, numShards);
+			return;
+		}
+		File fastqFile = new File(queryFastq);
+		if(FastqParser.isStdin(queryFastq) || !fastqFile.isFile()) {
+			throw new IllegalArgumentException("Byte shards need a regular fastq file; use " + SHARD_RECORDS + " shards to read a pipe");
+		}
+		long length = fastqFile.length();
+		long start = FastqParser.findRecordStart(fastqFile, byteShardStart(length, shardIndex, numShards));
+		long end = shardIndex == numShards - 1 ? length : FastqParser.findRecordStart(fastqFile, byteShardStart(length, shardIndex + 1, numShards));
+		reader.start(fastqFile, start);
+		reader.setEndOffset(end);
+	}
+	
+	/**
+	 * Byte offset where a byte shard of a file starts, before moving to the next record start
+	 * @param length File length
+	 * @param index Shard index
+	 * @param count Number of shards
+	 * @return Offset of the shard boundary
+	 */
+	static long byteShardStart(long length, int index, int count) {
+		return length / count * index + length % count * index / count;
+	}
+	
+	/**
+	 * Map many fastq files at once, each to its own bam file
+	 * Mapping small libraries is mostly waiting on files, so each file is read and written on its own virtual
+	 * thread when the JVM has them (Java 21+), otherwise on a pool of platform threads; the matching runs in
+	 * batches on a fixed pool of platform threads. Counts, metrics and histograms are totals over all files
+	 * @param manifest Manifest of files. Line format: fastq_file bam_file
+	 * @param format Output format, one of the formats in SamtoolsUtils
+	 * @param numThreads Number of threads for matching
+	 * @param maxOpenFiles Max number of fastq files being mapped at once
+	 * @throws IOException
+	 */
+	private void writeFirstKmerMatchEachTarget(String manifest, String format, int numThreads, int maxOpenFiles) throws IOException {
+		
+		if(numThreads < 1 || maxOpenFiles < 1) {
+			throw new IllegalArgumentException("Number of threads and max open files must be positive");
+		}
+		if(numShards > 1 || partialCountsFile != null) {
+			throw new IllegalArgumentException("Shards and partial counts are only supported for a single fastq file");
+		}
+		final List<String> fastqs = new ArrayList<String>();
+		final List<String> bams = new ArrayList<String>();
+		readManifest(manifest, fastqs, bams);
+		
+		System.out.println("");
+		System.out.println("Writing matches for reads in " + fastqs.size() + " fastq files in " + manifest + " with " + numThreads + " matching threads...");
+		
+		final MappingStats stats = new MappingStats();
+		PrometheusTextfileExporter exporter = null;
+		if(metricsFile != null) {
+			exporter = new PrometheusTextfileExporter(metricsFile, stats, new File(manifest).getName(), indexType, indexSize());
+			exporter.start(metricsIntervalSeconds);
+		}
+		final ReadLengthHistograms histograms = histogramFile == null ? null : new ReadLengthHistograms();
+		final Semaphore openFiles = new Semaphore(maxOpenFiles);
+		final ExecutorService matchers = Executors.newFixedThreadPool(numThreads);
+		ExecutorService files = newFileExecutor(Math.min(maxOpenFiles, fastqs.size()));
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for(int i = 0; i < fastqs.size(); i++) {
+			final String fastq = fastqs.get(i);
+			final String bam = bams.get(i);
+			final String outputFormat = format;
+			futures.add(files.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					openFiles.acquire();
+					try {
+						ReadLengthHistograms fileHistograms = mapFile(fastq, bam, outputFormat, matchers, stats);
+						if(histograms != null) {
+							synchronized(histograms) {
+								histograms.merge(fileHistograms);
+							}
+						}
+					} finally {
+						openFiles.release();
+					}
+					return null;
+				}
+			}));
+		}
+		try {
+			for(Future<Void> future : futures) {
+				future.get();
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while mapping files", e);
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			files.shutdownNow();
+			matchers.shutdownNow();
+		}
+		if(exporter != null) {
+			exporter.stop();
+		}
+		stats.printResults(MAX_PCT_N);
+		if(histograms != null) {
+			histograms.write(histogramFile);
+			System.out.println("Wrote read length histograms to " + histogramFile);
+		}
 		
 	}
 	
+	/**
+	 * Map one fastq file of several, reading and writing on the calling thread and matching on the pool
+	 * The next batch is read while the previous one is matched; one batch per file is matched at a time
+	 * @param fastq Fastq file
+	 * @param bam Bam file to write
+	 * @param format Output format, one of the formats in SamtoolsUtils
+	 * @param matchers Pool of matching threads
+	 * @param stats Stats shared by all files
+	 * @return Read length histograms of the file, or null if not kept
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	private ReadLengthHistograms mapFile(String fastq, String bam, String format, ExecutorService matchers, final MappingStats stats) throws IOException, InterruptedException, ExecutionException {
+		final ReadLengthHistograms histograms = histogramFile == null ? null : new ReadLengthHistograms();
+		final ReadMapper mapper = new ReadMapper();
+		FastqParser reader = new FastqParser();
+		reader.start(fastq);
+		SAMFileWriterImpl writer = SamtoolsUtils.createWriter(bam, format, samHeader);
+		long numReads = 0;
+		long numRecords = 0;
+		try {
+			Future<List<SAMRecord>> pending = null;
+			while(true) {
+				final List<FastqSequence> batch = new ArrayList<FastqSequence>(batchSize);
+				while(batch.size() < batchSize && reader.hasNext()) {
+					batch.add(reader.next());
+				}
+				if(pending != null) {
+					for(SAMRecord alignment : pending.get()) {
+						writer.addAlignment(alignment);
+						numRecords++;
+					}
+				}
+				if(batch.isEmpty()) {
+					break;
+				}
+				numReads += batch.size();
+				pending = matchers.submit(new Callable<List<SAMRecord>>() {
+					@Override
+					public List<SAMRecord> call() {
+						List<SAMRecord> rtrn = new ArrayList<SAMRecord>();
+						mapper.beginBatch();
+						for(FastqSequence query : batch) {
+							rtrn.addAll(mapper.map(query, stats, histograms));
+						}
+						mapper.endBatch();
+						return rtrn;
+					}
+				});
+			}
+		} finally {
+			reader.close();
+			writer.close();
+		}
+		System.out.println("Finished " + fastq + ":\t" + numReads + " reads\t" + numRecords + " alignments written to " + bam);
+		return histograms;
+	}
+	
+	/**
+	 * Read a manifest of fastq files and the bam files to write them to
+	 * Line format: fastq_file bam_file
+	 * @param manifest Manifest file
+	 * @param fastqs List to add fastq files to
+	 * @param bams List to add bam files to
+	 * @throws IOException
+	 */
+	private static void readManifest(String manifest, List<String> fastqs, List<String> bams) throws IOException {
+		BufferedReader r = new BufferedReader(new FileReader(manifest));
+		LineTokenizer p = new LineTokenizer();
+		String line;
+		while((line = r.readLine()) != null) {
+			if(line.trim().isEmpty()) continue;
+			p.tokenize(line);
+			if(p.getFieldCount() != 2) {
+				r.close();
+				throw new IllegalArgumentException("Fastq manifest format: <fastq file>   <bam file>");
+			}
+			if(FastqParser.isStdin(p.asString(0)) || p.asString(1).equals(SamtoolsUtils.STDOUT)) {
+				r.close();
+				throw new IllegalArgumentException("Fastq manifest cannot use standard input or output: " + line);
+			}
+			fastqs.add(p.asString(0));
+			bams.add(p.asString(1));
+		}
+		r.close();
+		if(fastqs.isEmpty()) {
+			throw new IllegalArgumentException("No fastq files in manifest " + manifest);
+		}
+	}
+	
+	/**
+	 * Get an executor for file reading and writing tasks
+	 * Looked up by reflection so the code builds with Java 11 and runs on Java 11-20 with platform threads
+	 * @param fallbackThreads Number of platform threads to use if virtual threads are not available
+	 * @return Executor that starts a virtual thread per task, or a pool of platform threads
+	 */
+	private static ExecutorService newFileExecutor(int fallbackThreads) {
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		} catch(ReflectiveOperationException e) {
+			// Java 11-20, or a preview release without preview features enabled
+			System.out.println("Virtual threads not available; reading and writing files on " + fallbackThreads + " platform threads");
+			return Executors.newFixedThreadPool(fallbackThreads);
+		}
+	}
+	
+	/**
+	 * @param status Status of a read that was not searched
+	 * @return Outcome for the read length histograms
+	 */
+	private static int histogramOutcome(int status) {
+		switch(status) {
+		case BaseCodes.TOO_SHORT: return ReadLengthHistograms.TOO_SHORT;
+		case BaseCodes.ILLEGAL_CHAR: return ReadLengthHistograms.ILLEGAL_CHAR;
+		case BaseCodes.TOO_MANY_NS: return ReadLengthHistograms.TOO_MANY_NS;
+		case STATUS_FAILED_LENGTH_FILTER: return ReadLengthHistograms.FAILED_LENGTH_FILTER;
+		default: throw new IllegalArgumentException("Not a skipped read status: " + status);
+		}
+	}
+	
 	/**
 	 * Get the "first" kmer match between a query and a target, out of a set of multiple kmer matches between these sequences
+	 * If the query matches the target on both strands, only the forward matches are considered
 	 * @param kmerMatches Set of kmer matches all with same query and target
 	 * @return The "first" match, i.e. smallest position on query and target represented in the set of kmer matches
 	 */
 	private QueryTargetMatch firstKmerMatch(Collection<IndividualKmerMatch> kmerMatches) {
+		boolean reverse = true;
+		for(IndividualKmerMatch kmerMatch : kmerMatches) {
+			if(!kmerMatch.isReverse()) {
+				reverse = false;
+				break;
+			}
+		}
+		if(!reverse && strand.equals(STRAND_BOTH)) {
+			Collection<IndividualKmerMatch> forwardMatches = new ArrayList<IndividualKmerMatch>();
+			for(IndividualKmerMatch kmerMatch : kmerMatches) {
+				if(!kmerMatch.isReverse()) forwardMatches.add(kmerMatch);
+			}
+			kmerMatches = forwardMatches;
+		}
 		Iterator<IndividualKmerMatch> iter = kmerMatches.iterator();
 		if(!iter.hasNext()) {
 			throw new IllegalArgumentException("Iterator empty");
@@ -393,7 +871,7 @@ public class PerfectKmerSearch {
 		}
 		SequencePos queryMatchPos = new SequencePos(query, queryStart);
 		SequencePos targetMatchPos = new SequencePos(target, targetStart);
-		return new QueryTargetMatch(queryMatchPos, targetMatchPos, matchLen);
+		return new QueryTargetMatch(queryMatchPos, targetMatchPos, matchLen, reverse);
 	}
 	
 	/**
@@ -438,39 +916,257 @@ public class PerfectKmerSearch {
 	private int mink; // Minimum kmer length (set to shortest target length when making kmer index for targets, or to maxk, whichever is smaller)
 	private int maxk; // Maximum kmer length to search for
 	private Map<String, Collection<SequencePos>> targetKmers; // Key is kmer; value is collection of sequences with kmer and the match position
+	private TargetIndex targetIndex; // Alternative index used instead of targetKmers, or null to use targetKmers
+	private String indexType; // Type of the index, one of the INDEX constants
+	private Sequence[] targets; // Target sequences in fasta order; position in the array is the target ID in targetIndex
+	private KmerPrefilter prefilter; // Rejects queries that cannot match any target before the full search, or null
 	//private static Logger logger = Logger.getLogger(PerfectKmerSearch.class.getName());
 	private SAMFileHeader samHeader; // SAM header for target sequences
 	private static double MAX_PCT_N = 0.05; // Max percentage of N's in reads
+	private AdapterTrimmer adapterTrimmer = null; // Trims adapters from reads before searching, or null
+	private String metricsFile = null; // Prometheus textfile to write progress metrics to, or null
+	private int metricsIntervalSeconds = DEFAULT_METRICS_INTERVAL; // Seconds between metrics file updates
+	private static final int DEFAULT_METRICS_INTERVAL = 15;
+	private String histogramFile = null; // File to write read length histograms to, or null
+	private int batchSize = MappingPipeline.DEFAULT_BATCH_SIZE; // Number of reads passed between threads at a time
+	private int queueDepth = MappingPipeline.DEFAULT_QUEUE_DEPTH; // Max batches waiting between pipeline stages
+	private String outputOrder = ORDER_INPUT; // Order of records in the output when matching on several threads
+	private String checkpointFile = null; // File to write checkpoints to and resume from, or null
+	private long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL; // Reads between checkpoints
+	private static final long DEFAULT_CHECKPOINT_INTERVAL = 1000000;
+	private int shardIndex = 0; // Shard of the fastq to map
+	private int numShards = 1;
+	private String shardMode = SHARD_BYTES;
+	private String partialCountsFile = null; // File to write the counts of the shard to, or null
+	private List<String> groupNames = null; // Groups to count reads in for the partial counts, or null
+	private int[][] groupsOfTarget = null; // Group IDs of each target ID
+	private String strand = STRAND_FORWARD; // Strand of the targets reads are matched to
 	
 	/**
 	 * The legal characters converted to upper case, not including N
 	 */
 	public static final char[] alphabet = {'A', 'C', 'G', 'T'};
 	
+	/**
+	 * Index type: hash map of kmer strings on the Java heap
+	 */
+	public static final String INDEX_MAP = "map";
+	
+	/**
+	 * Index type: packed kmer hash table outside the Java heap
+	 */
+	public static final String INDEX_OFF_HEAP = "offheap";
+	
+	/**
+	 * Index type: suffix array searched once per query position for all kmer lengths
+	 */
+	public static final String INDEX_SUFFIX_ARRAY = "sa";
+	
+	/**
+	 * Index type: FM-index (BWT and sampled suffix array) for large target sets
+	 */
+	public static final String INDEX_FM = "fm";
+	
+	/**
+	 * Output order: records in the order of the reads in the fastq, reproducible across runs
+	 */
+	public static final String ORDER_INPUT = "input";
+	
+	/**
+	 * Output order: records of each batch written as soon as it is matched, fastest with several matching threads
+	 */
+	public static final String ORDER_COMPLETION = "completion";
+	
+	/**
+	 * Search strand: reads are matched to the targets as they are
+	 */
+	public static final String STRAND_FORWARD = "forward";
+	
+	/**
+	 * Search strand: the reverse complements of reads are matched to the targets, for reverse stranded libraries
+	 */
+	public static final String STRAND_REVERSE = "reverse";
+	
+	/**
+	 * Search strand: reads and their reverse complements are matched to the targets, preferring the forward strand
+	 */
+	public static final String STRAND_BOTH = "both";
+	
+	/**
+	 * Shard mode: contiguous byte ranges of the fastq file, each read by seeking to its start
+	 */
+	public static final String SHARD_BYTES = "bytes";
+	
+	/**
+	 * Shard mode: records whose index in the fastq modulo the number of shards is the shard index; works on pipes
+	 */
+	public static final String SHARD_RECORDS = "records";
+	
 	/**
 	 * @param k Length of kmers to match. Shorter matches are allowed for shorter target transcripts.
 	 * @param fasta Fasta file of target sequences
 	 */
 	public PerfectKmerSearch(int k, String fasta) {
+		this(k, fasta, INDEX_MAP);
+	}
+	
+	/**
+	 * @param k Length of kmers to match. Shorter matches are allowed for shorter target transcripts.
+	 * @param fasta Fasta file of target sequences
+	 * @param indexType Type of index to build for the targets
+	 */
+	public PerfectKmerSearch(int k, String fasta, String indexType) {
+		this(k, fasta, indexType, false);
+	}
+	
+	/**
+	 * @param k Length of kmers to match. Shorter matches are allowed for shorter target transcripts.
+	 * @param fasta Fasta file of target sequences
+	 * @param indexType Type of index to build for the targets
+	 * @param usePrefilter Check queries against a Bloom filter of target seeds before the full search
+	 */
+	public PerfectKmerSearch(int k, String fasta, String indexType, boolean usePrefilter) {
+		this(k, fasta, indexType, usePrefilter, STRAND_FORWARD);
+	}
+	
+	/**
+	 * @param k Length of kmers to match. Shorter matches are allowed for shorter target transcripts.
+	 * @param fasta Fasta file of target sequences
+	 * @param indexType Type of index to build for the targets
+	 * @param usePrefilter Check queries against a Bloom filter of target seeds before the full search
+	 * @param strand Strand of the targets to match reads to: STRAND_FORWARD, STRAND_REVERSE or STRAND_BOTH;
+	 * the reverse strand needs the off-heap index
+	 */
+	public PerfectKmerSearch(int k, String fasta, String indexType, boolean usePrefilter, String strand) {
+		if(!strand.equals(STRAND_FORWARD) && !strand.equals(STRAND_REVERSE) && !strand.equals(STRAND_BOTH)) {
+			throw new IllegalArgumentException("Invalid strand: " + strand);
+		}
+		if(!strand.equals(STRAND_FORWARD) && !indexType.equals(INDEX_OFF_HEAP)) {
+			throw new IllegalArgumentException("Reverse complement search needs the " + INDEX_OFF_HEAP + " index");
+		}
+		this.strand = strand;
+		this.indexType = indexType;
 		this.maxk = k;
-		setMinK(fasta);
-		createIndex(fasta);
-		samHeader = SamtoolsUtils.createSamHeader(fasta);
+		// Read the targets once for min k, the index and the SAM header
+		targets = FastaReader.readFromFile(fasta).toArray(new Sequence[0]);
+		setMinK();
+		if(indexType.equals(INDEX_OFF_HEAP)) {
+			targetIndex = new OffHeapKmerIndex(mink, maxk, !strand.equals(STRAND_FORWARD));
+		} else if(indexType.equals(INDEX_SUFFIX_ARRAY)) {
+			targetIndex = new SuffixArrayIndex(mink, maxk);
+		} else if(indexType.equals(INDEX_FM)) {
+			targetIndex = new FmIndex(mink, maxk);
+		} else if(!indexType.equals(INDEX_MAP)) {
+			throw new IllegalArgumentException("Invalid index type: " + indexType);
+		}
+		createIndex(fasta, usePrefilter);
+		samHeader = SamtoolsUtils.createSamHeader(Arrays.asList(targets));
 	}
 
 	
 	/**
-	 * Check if the char (converted to upper case) is in the alphabet or is N
-	 * @param c Char to check
-	 * @return True iff upper case version of char is in alphabet or is N
+	 * Trim a 3' adapter from reads and filter them by trimmed length before searching
+	 * @param trimmer Adapter trimmer
+	 */
+	public void setAdapterTrimmer(AdapterTrimmer trimmer) {
+		this.adapterTrimmer = trimmer;
+	}
+	
+	/**
+	 * Periodically write progress metrics to a Prometheus textfile while mapping
+	 * @param promFile File to write, should end in .prom
+	 * @param intervalSeconds Seconds between updates
+	 */
+	public void setMetricsFile(String promFile, int intervalSeconds) {
+		this.metricsFile = promFile;
+		this.metricsIntervalSeconds = intervalSeconds;
+	}
+	
+	/**
+	 * Accumulate read length and match length histograms while mapping and write them at the end
+	 * @param file Output file; JSON if the name ends in .json, otherwise a tab delimited table
+	 */
+	public void setHistogramFile(String file) {
+		this.histogramFile = file;
+	}
+	
+	/**
+	 * Set the size of the batches of reads passed between threads and the number that can wait between stages
+	 * @param batchSize Number of reads per batch
+	 * @param queueDepth Max number of batches waiting between two stages
 	 */
-	private static boolean charIsLegal(char c) {
-		char cu = Character.toUpperCase(c);
-		if(cu == 'N') return true;
-		for(char a : alphabet) {
-			if(cu == a) return true;
+	public void setPipelineSize(int batchSize, int queueDepth) {
+		if(batchSize < 1 || queueDepth < 1) {
+			throw new IllegalArgumentException("Batch size and queue depth must be positive: " + batchSize + ", " + queueDepth);
 		}
-		return false;
+		this.batchSize = batchSize;
+		this.queueDepth = queueDepth;
+	}
+	
+	/**
+	 * Set the order of the output records when matching a fastq file on several threads
+	 * Counts and stats are the same either way
+	 * @param order ORDER_INPUT or ORDER_COMPLETION
+	 */
+	public void setOutputOrder(String order) {
+		if(!order.equals(ORDER_INPUT) && !order.equals(ORDER_COMPLETION)) {
+			throw new IllegalArgumentException("Invalid output order: " + order);
+		}
+		this.outputOrder = order;
+	}
+	
+	/**
+	 * Periodically checkpoint the mapping of a fastq file, and resume from the checkpoint if the file has one
+	 * @param file Checkpoint file
+	 * @param readsBetween Number of reads between checkpoints
+	 */
+	public void setCheckpointFile(String file, long readsBetween) {
+		if(readsBetween < 1) {
+			throw new IllegalArgumentException("Reads between checkpoints must be positive: " + readsBetween);
+		}
+		this.checkpointFile = file;
+		this.checkpointInterval = readsBetween;
+	}
+	
+	/**
+	 * Map only one shard of the fastq file
+	 * @param mode SHARD_BYTES or SHARD_RECORDS
+	 * @param index Index of the shard, from 0
+	 * @param count Number of shards
+	 */
+	public void setShard(String mode, int index, int count) {
+		if(!mode.equals(SHARD_BYTES) && !mode.equals(SHARD_RECORDS)) {
+			throw new IllegalArgumentException("Invalid shard mode: " + mode);
+		}
+		if(count < 1 || index < 0 || index >= count) {
+			throw new IllegalArgumentException("Invalid shard " + index + " of " + count);
+		}
+		this.shardMode = mode;
+		this.shardIndex = index;
+		this.numShards = count;
+	}
+	
+	/**
+	 * Count the reads mapped to each group while mapping, and write them with the read counts as partial counts
+	 * to merge with the other shards with PartialCounts
+	 * @param file Partial counts file to write
+	 * @param groupTable Group table, text or compiled with GroupTable, for the reference fasta
+	 * @param refFasta Reference fasta file
+	 * @throws IOException
+	 */
+	public void setPartialCountsFile(String file, String groupTable, String refFasta) throws IOException {
+		GroupTable table = GroupTable.load(refFasta, groupTable);
+		groupsOfTarget = new int[samHeader.getSequenceDictionary().size()][];
+		for(int i = 0; i < groupsOfTarget.length; i++) {
+			String name = samHeader.getSequence(i).getSequenceName();
+			int refId = table.getRefId(name);
+			if(refId < 0) {
+				throw new IllegalArgumentException("Target " + name + " is not in group table " + groupTable);
+			}
+			groupsOfTarget[i] = table.getGroupsOfRef(refId);
+		}
+		this.groupNames = table.getGroupNames();
+		this.partialCountsFile = file;
 	}
 	
 	@SuppressWarnings("serial")
@@ -494,47 +1190,42 @@ public class PerfectKmerSearch {
 		}
 	}
 	
-	private static final int MAX_LEN_TO_CHECK_N_CONTENT = 5000;
+	private static final int STATUS_FAILED_LENGTH_FILTER = -1; // Read status when the trimmed read fails the length filter, in addition to BaseCodes statuses
+	
+	private static final int DEFAULT_MAX_OPEN_FILES = 256;
+	private static final double MAX_PREFILTER_PASS_RATE = 0.5; // Prefilter is dropped if it passes more random seeds than this
 	
 	/**
 	 * Check that a sequence is valid
+	 * Only used for targets; reads are checked with BaseCodes.validateAndEncode() which does not throw exceptions
 	 * @param seq Sequence
 	 */
 	private void validateSequence(Sequence seq) {
 		
 		String bases = seq.getSequenceBases();
 		int len = bases.length();
-		
 		if(len < mink) {
 			throw new SequenceTooShortException("Query shorter than " + mink + ":\t" + seq.getName() + "\t" + bases);
 		}
-		
-		boolean checkN = len <= MAX_LEN_TO_CHECK_N_CONTENT;
-		
+		// Same checks as BaseCodes.validateAndEncode(), in one pass that reports the illegal character
 		int numNs = 0;
 		for(int i = 0; i < len; i++) {
-			char c = bases.charAt(i);
-			// Check that the sequence includes no illegal characters
-			if(!charIsLegal(c)) {
-				throw new IllegalCharacterException("Illegal char in sequence " + seq.getName() + ": " + c);
-			}
-			// Make sure there aren't too many N's
-			if(checkN) {
-				if(Character.toUpperCase(c) == 'N') {numNs++;}
+			byte c = BaseCodes.code(bases.charAt(i));
+			if(c == BaseCodes.ILLEGAL) {
+				throw new IllegalCharacterException("Illegal char in sequence " + seq.getName() + ": " + bases.charAt(i));
 			}
+			if(c == BaseCodes.N) numNs++;
 		}
-		if((double) numNs / (double) len > MAX_PCT_N) {
+		if(len <= BaseCodes.MAX_LEN_TO_CHECK_N_CONTENT && (double) numNs / (double) len > MAX_PCT_N) {
 			throw new TooManyNsException("Sequence has >" + MAX_PCT_N + " Ns:\t" + seq.getName() + "\t" + bases);
 		}
 		
 	}
 	
 	/**
-	 * Set minimum kmer length field as the length of the shortest sequence in a fasta file
-	 * @param fasta Fasta file
+	 * Set minimum kmer length field as the length of the shortest target sequence
 	 */
-	private void setMinK(String fasta) {
-		Collection<Sequence> targets = FastaReader.readFromFile(fasta);
+	private void setMinK() {
 		mink = maxk;
 		for(Sequence target : targets) {
 			int len = target.getLength();
@@ -545,15 +1236,25 @@ public class PerfectKmerSearch {
 
 	/**
 	 * Store kmers and their matches to target sequences
-	 * @param fasta Fasta file of target sequences
+	 * @param fasta Fasta file the targets were read from
+	 * @param usePrefilter Also build the prefilter of target seeds
 	 */
-	private void createIndex(String fasta) {
+	private void createIndex(String fasta, boolean usePrefilter) {
 		System.out.println("");
 		System.out.println("Creating index for target fasta " + fasta + "...");
+		MirmagicEvents.IndexBuild event = new MirmagicEvents.IndexBuild();
+		event.begin();
 		targetKmers = new HashMap<String, Collection<SequencePos>>();
-		Collection<Sequence> targets = FastaReader.readFromFile(fasta);
 		int numSkipped = 0;
+		long numBases = 0;
 		for(Sequence target : targets) {
+			numBases += target.getLength();
+		}
+		if(usePrefilter) {
+			prefilter = new KmerPrefilter(mink, numBases, !strand.equals(STRAND_FORWARD));
+		}
+		for(int targetId = 0; targetId < targets.length; targetId++) {
+			Sequence target = targets[targetId];
 			try {
 				validateSequence(target);
 			} catch(SequenceTooShortException e) {
@@ -569,12 +1270,21 @@ public class PerfectKmerSearch {
 			 *  The kmer length is maxk or the transcript length, whichever is shorter
 			 */
 			int k = Math.min(len, maxk);
+			// Keep the target packed; the bases as a String are only needed while indexing
+			targets[targetId] = new PackedSequence(target);
+			if(prefilter != null) {
+				prefilter.addTarget(target.getSequenceBases());
+			}
+			if(targetIndex != null) {
+				targetIndex.addTarget(targetId, target.getSequenceBases(), k);
+				continue;
+			}
 			for(KmerSubsequence kmer : getKmers(target.getSequenceBases(), k, k)) {
 				String kmerSeq = kmer.getSeq();
 				if(!targetKmers.containsKey(kmerSeq)) {
 					targetKmers.put(kmerSeq, new TreeSet<SequencePos>());
 				}
-				targetKmers.get(kmerSeq).add(new SequencePos(target, kmer.getOrigSeqPos()));
+				targetKmers.get(kmerSeq).add(new SequencePos(targets[targetId], kmer.getOrigSeqPos()));
 			}
 		}
 		if(numSkipped > 0) {
@@ -582,6 +1292,28 @@ public class PerfectKmerSearch {
 			System.out.println("Skipped " + numSkipped + " target sequences that did not validate");
 			System.out.println("");
 		}
+		if(targetIndex != null) {
+			targetIndex.finish();
+		}
+		if(prefilter != null && prefilter.getPassRate() > MAX_PREFILTER_PASS_RATE) {
+			System.out.println("");
+			System.out.println("WARNING: Not using the prefilter. It would pass about " + Math.round(100 * prefilter.getPassRate()) + "% of random seeds of length "
+					+ prefilter.getSeedLength() + " and reject almost no reads. Increase the min match length to use it.");
+			System.out.println("");
+			prefilter = null;
+		}
+		event.end();
+		if(event.shouldCommit()) {
+			event.fasta = fasta;
+			event.numTargets = targets.length - numSkipped;
+			event.numSkipped = numSkipped;
+			event.indexType = indexType;
+			event.indexSize = indexSize();
+			event.bases = numBases;
+			event.mink = mink;
+			event.maxk = maxk;
+			event.commit();
+		}
 		System.out.println("Done creating index. Minimum k is " + mink + ". Maximum k is " + maxk + ".");
 	}
 	
@@ -654,12 +1386,45 @@ public class PerfectKmerSearch {
 	/**
 	 * Get all kmer matches of this query to the stored targets, based on kmer matches
 	 * There can be multiple matches to a given target
-	 * @param query Query sequence
+	 * @param query Query sequence, already validated
+	 * @param codes Codes of the query bases from BaseCodes
 	 * @return Set of perfect kmer matches
 	 */
-	private Collection<IndividualKmerMatch> getIndividualKmerMatches(Sequence query) {
-		validateSequence(query);
-		Collection<KmerSubsequence> queryKmers = getKmers(query.getSequenceBases(), mink, maxk);
+	private Collection<IndividualKmerMatch> getIndividualKmerMatches(final Sequence query, byte[] codes) {
+		final String bases = query.getSequenceBases();
+		if(prefilter != null && !prefilter.mayMatch(codes, bases.length())) {
+			return new ArrayList<IndividualKmerMatch>();
+		}
+		if(!strand.equals(STRAND_FORWARD)) {
+			final Collection<IndividualKmerMatch> rtrn = new HashSet<IndividualKmerMatch>();
+			// One lookup of the canonical key of each query window finds the matches on both strands
+			((OffHeapKmerIndex) targetIndex).search(codes, bases.length(), strand.equals(STRAND_BOTH), true, new OffHeapKmerIndex.StrandedMatchVisitor() {
+				@Override
+				public void match(int targetId, int queryPos, int targetPos, int k, boolean reverse) {
+					KmerSubsequence queryKmer;
+					if(reverse) {
+						// Positions of reverse matches are on the reverse complement of the query, like the bases of their records
+						queryKmer = new KmerSubsequence(BaseCodes.reverseComplement(bases.substring(queryPos, queryPos + k)).toUpperCase(), bases.length() - queryPos - k);
+					} else {
+						queryKmer = new KmerSubsequence(bases.substring(queryPos, queryPos + k).toUpperCase(), queryPos);
+					}
+					rtrn.add(new IndividualKmerMatch(query, queryKmer, new SequencePos(targets[targetId], targetPos), reverse));
+				}
+			});
+			return rtrn;
+		}
+		if(targetIndex != null) {
+			final Collection<IndividualKmerMatch> rtrn = new HashSet<IndividualKmerMatch>();
+			targetIndex.search(codes, bases.length(), new TargetIndex.MatchVisitor() {
+				@Override
+				public void match(int targetId, int queryPos, int targetPos, int k) {
+					KmerSubsequence queryKmer = new KmerSubsequence(bases.substring(queryPos, queryPos + k).toUpperCase(), queryPos);
+					rtrn.add(new IndividualKmerMatch(query, queryKmer, new SequencePos(targets[targetId], targetPos)));
+				}
+			});
+			return rtrn;
+		}
+		Collection<KmerSubsequence> queryKmers = getKmers(bases, mink, maxk);
 		Collection<IndividualKmerMatch> rtrn = new HashSet<IndividualKmerMatch>();
 		for(KmerSubsequence queryKmer : queryKmers) {
 			String kmerSeq = queryKmer.getSeq();
@@ -672,6 +1437,15 @@ public class PerfectKmerSearch {
 		return rtrn;
 	}
 	
+	/**
+	 * @return Number of entries in the index: distinct kmers for the map and off-heap indexes, suffixes for
+	 * the suffix array, and text length for the FM-index
+	 */
+	private long indexSize() {
+		if(targetIndex != null) return targetIndex.size();
+		return targetKmers.size();
+	}
+	
 	/**
 	 * Write kmer index out to a file
 	 * @param outFile File to write
@@ -695,22 +1469,85 @@ public class PerfectKmerSearch {
 		
 		CommandLineParser p = new CommandLineParser();
 		p.addStringArg("-fa", "Reference fasta", true);
-		p.addStringArg("-fq", "Query fastq", true);
-		p.addStringArg("-b", "Output bam", true);
+		p.addStringArg("-fq", "Query fastq, can be a named pipe, or " + FastqParser.STDIN + " to read standard input", false);
+		p.addStringArg("-b", "Output bam, or " + SamtoolsUtils.STDOUT + " to write to standard output", false);
+		p.addStringArg("-fql", "Instead of -fq and -b, manifest of fastq files to map at once, one per line: fastq_file bam_file", false);
+		p.addIntArg("-t", "Number of threads for matching reads", false, 1);
+		p.addStringArg("-oo", "Output order with -fq: " + ORDER_INPUT + " (fastq order, reproducible) or " + ORDER_COMPLETION + " (as batches finish matching, fastest)", false, ORDER_INPUT);
+		p.addIntArg("-mo", "Max number of fastq files open at once with -fql", false, DEFAULT_MAX_OPEN_FILES);
+		p.addStringArg("-of", "Output format: " + SamtoolsUtils.FORMAT_BAM + ", " + SamtoolsUtils.FORMAT_UNCOMPRESSED_BAM + " (uncompressed bam) or " + SamtoolsUtils.FORMAT_SAM, false, SamtoolsUtils.FORMAT_BAM);
 		p.addIntArg("-k", "Kmer length", true);
 		p.addDoubleArg("-mn", "Max proportion of N's in query sequence", false, MAX_PCT_N);
+		p.addStringArg("-prom", "Prometheus textfile (.prom) to periodically write progress metrics to", false);
+		p.addIntArg("-promi", "Seconds between updates of the metrics file", false, DEFAULT_METRICS_INTERVAL);
+		p.addStringArg("-ix", "Target index type: " + INDEX_MAP + " (hash map on the Java heap), " + INDEX_OFF_HEAP + " (packed kmers outside the heap, k <= " + OffHeapKmerIndex.MAX_K + "), " + INDEX_SUFFIX_ARRAY + " (suffix array searched for all kmer lengths at once) or " + INDEX_FM + " (FM-index, smallest memory while searching large target sets; about 24 bytes per target base while building)", false, INDEX_MAP);
+		p.addStringArg("-st", "Strand to match reads to: " + STRAND_FORWARD + ", " + STRAND_REVERSE + " (reverse complement of reads, for reverse stranded libraries) or " + STRAND_BOTH + "; " + STRAND_REVERSE + " and " + STRAND_BOTH + " need -ix " + INDEX_OFF_HEAP, false, STRAND_FORWARD);
+		p.addBooleanArg("-pf", "Reject reads that cannot match any target with a Bloom filter before the full search. Not used if the min match length is so short that the targets contain most seeds", false, false);
+		p.addStringArg("-ad", "3' adapter sequence to trim from reads before searching", false);
+		p.addIntArg("-ado", "Min overlap of read end with adapter beginning to trim", false, 3);
+		p.addIntArg("-minl", "Min read length after adapter trimming", false, 0);
+		p.addIntArg("-maxl", "Max read length after adapter trimming", false, Integer.MAX_VALUE);
+		p.addStringArg("-lh", "File to write read length histograms by mapping outcome to (.json for JSON, otherwise tab delimited)", false);
+		p.addIntArg("-bs", "Number of reads per batch passed between reading, matching and writing threads", false, MappingPipeline.DEFAULT_BATCH_SIZE);
+		p.addIntArg("-qd", "Max number of batches waiting between reading, matching and writing", false, MappingPipeline.DEFAULT_QUEUE_DEPTH);
+		p.addStringArg("-ck", "Checkpoint file with -fq: write checkpoints to it while mapping, and resume from it after a restart; deleted when the run finishes", false);
+		p.addLongArg("-cki", "Number of reads between checkpoints", false, DEFAULT_CHECKPOINT_INTERVAL);
+		p.addStringArg("-sh", "Map only one shard of -fq, as index/count from 0, e.g. 2/8", false);
+		p.addStringArg("-shm", "Shard mode: " + SHARD_BYTES + " (contiguous byte ranges of a regular file) or " + SHARD_RECORDS + " (every count-th record, works on pipes)", false, SHARD_BYTES);
+		p.addStringArg("-pc", "File to write partial counts of the shard to, for merging with PartialCounts; needs -g", false);
+		p.addStringArg("-g", "Group table for -pc, text or compiled with GroupTable", false);
 		p.parse(args);
 		String fasta = p.getStringArg("-fa");
 		String fastq = p.getStringArg("-fq");
 		String bam = p.getStringArg("-b");
+		String manifest = p.getStringArg("-fql");
+		if(manifest != null ? fastq != null || bam != null : fastq == null || bam == null) {
+			p.printHelpMessage();
+			throw new IllegalArgumentException("Provide either -fq and -b, or -fql");
+		}
+		if(bam != null && bam.equals(SamtoolsUtils.STDOUT)) {
+			// Keep messages out of the output stream
+			System.setOut(System.err);
+		}
 		int k = p.getIntArg("-k");
 		MAX_PCT_N = p.getDoubleArg("-mn");
 		if(MAX_PCT_N < 0 || MAX_PCT_N > 1) {
 			throw new IllegalArgumentException("Invalid value for max proportion of N's: " + MAX_PCT_N);
 		}
 		
-		PerfectKmerSearch pks = new PerfectKmerSearch(k, fasta);
-		pks.writeFirstKmerMatchEachTarget(fastq, bam);
+		PerfectKmerSearch pks = new PerfectKmerSearch(k, fasta, p.getStringArg("-ix"), p.getBooleanArg("-pf"), p.getStringArg("-st"));
+		if(p.getStringArg("-ad") != null) {
+			pks.setAdapterTrimmer(new AdapterTrimmer(p.getStringArg("-ad"), p.getIntArg("-ado"), p.getIntArg("-minl"), p.getIntArg("-maxl")));
+		}
+		if(p.getStringArg("-prom") != null) {
+			pks.setMetricsFile(p.getStringArg("-prom"), p.getIntArg("-promi"));
+		}
+		if(p.getStringArg("-lh") != null) {
+			pks.setHistogramFile(p.getStringArg("-lh"));
+		}
+		pks.setPipelineSize(p.getIntArg("-bs"), p.getIntArg("-qd"));
+		pks.setOutputOrder(p.getStringArg("-oo"));
+		if(p.getStringArg("-ck") != null) {
+			pks.setCheckpointFile(p.getStringArg("-ck"), p.getLongArg("-cki"));
+		}
+		if(p.getStringArg("-sh") != null) {
+			LineTokenizer shard = new LineTokenizer();
+			if(shard.tokenize(p.getStringArg("-sh"), '/') != 2) {
+				throw new IllegalArgumentException("Shard format: index/count, e.g. 2/8");
+			}
+			pks.setShard(p.getStringArg("-shm"), shard.asInt(0), shard.asInt(1));
+		}
+		if(p.getStringArg("-pc") != null) {
+			if(p.getStringArg("-g") == null) {
+				throw new IllegalArgumentException("Partial counts need a group table (-g)");
+			}
+			pks.setPartialCountsFile(p.getStringArg("-pc"), p.getStringArg("-g"), fasta);
+		}
+		if(manifest != null) {
+			pks.writeFirstKmerMatchEachTarget(manifest, p.getStringArg("-of"), p.getIntArg("-t"), p.getIntArg("-mo"));
+		} else {
+			pks.writeFirstKmerMatchEachTarget(fastq, bam, p.getStringArg("-of"), p.getIntArg("-t"));
+		}
 		
 		System.out.println("");
 		System.out.println("Done with kmer search.");
@@ -0,0 +1,171 @@
+package mirmagic;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically write mapping counters and gauges to a file in the Prometheus text exposition format,
+ * for collection by the node exporter textfile collector
+ * The file is written to a temporary file and renamed so the collector never sees a partial file
+ * @author prussell
+ *
+ */
+public class PrometheusTextfileExporter {
+
+	private static final String PREFIX = "mirmagic_";
+
+	private File promFile;
+	private File tmpFile;
+	private MappingStats stats;
+	private String sample;
+	private String indexType;
+	private long indexSize;
+	private MappingPipeline pipeline = null;
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * @param promFile File to write, should end in .prom
+	 * @param stats Stats to report
+	 * @param sample Sample name to use as label, e.g. the fastq file name
+	 * @param indexType Type of the target index, reported as a label on the index size
+	 * @param indexSize Number of entries in the target index, whose meaning depends on the type
+	 */
+	public PrometheusTextfileExporter(String promFile, MappingStats stats, String sample, String indexType, long indexSize) {
+		this.promFile = new File(promFile);
+		this.tmpFile = new File(promFile + ".tmp");
+		this.stats = stats;
+		this.sample = sample;
+		this.indexType = indexType;
+		this.indexSize = indexSize;
+	}
+
+	/**
+	 * Also report the queue occupancy of a mapping pipeline
+	 * @param pipeline The pipeline
+	 */
+	public void setPipeline(MappingPipeline pipeline) {
+		this.pipeline = pipeline;
+	}
+
+	/**
+	 * Start writing the file in a background thread
+	 * @param intervalSeconds Seconds between writes
+	 */
+	public void start(int intervalSeconds) {
+		if(intervalSeconds < 1) {
+			throw new IllegalArgumentException("Metrics interval must be at least one second: " + intervalSeconds);
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "prometheus-textfile-exporter");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				write(false);
+			}
+		}, 0, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Stop the background thread and write the final values
+	 */
+	public void stop() {
+		if(scheduler != null) {
+			scheduler.shutdown();
+			try {
+				scheduler.awaitTermination(10, TimeUnit.SECONDS);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		write(true);
+	}
+
+	/**
+	 * Write the current values
+	 * @param finished Whether mapping is finished
+	 */
+	private void write(boolean finished) {
+		Runtime runtime = Runtime.getRuntime();
+		StringBuilder sb = new StringBuilder();
+		appendMetric(sb, "reads_processed_total", "counter", "Reads read from the fastq file", stats.getNumDone());
+		appendMetric(sb, "reads_uniquely_mapped_total", "counter", "Reads matching exactly one target", stats.getNumUniquelyMapped());
+		appendMetric(sb, "reads_multi_mapped_total", "counter", "Reads matching more than one target", stats.getNumMultiMapped());
+		appendMetric(sb, "reads_unmapped_total", "counter", "Reads matching no target", stats.getNumUnmapped());
+		appendHeader(sb, "reads_skipped_total", "counter", "Reads skipped before searching, by reason");
+		appendSample(sb, "reads_skipped_total", "reason=\"too_short\"", stats.getNumTooShort());
+		appendSample(sb, "reads_skipped_total", "reason=\"illegal_char\"", stats.getNumIllegalChar());
+		appendSample(sb, "reads_skipped_total", "reason=\"too_many_ns\"", stats.getNumTooManyNs());
+		appendSample(sb, "reads_skipped_total", "reason=\"length_filter\"", stats.getNumFailedLengthFilter());
+		appendMetric(sb, "reads_adapter_trimmed_total", "counter", "Reads with adapter trimmed", stats.getNumAdapterTrimmed());
+		appendMetric(sb, "reads_per_second", "gauge", "Average reads processed per second by this run, not counting reads restored from a checkpoint", stats.getReadsPerSecond());
+		appendMetric(sb, "elapsed_seconds", "gauge", "Seconds since mapping started", stats.getElapsedSeconds());
+		appendMetric(sb, "heap_used_bytes", "gauge", "JVM heap in use", runtime.totalMemory() - runtime.freeMemory());
+		appendHeader(sb, "index_size", "gauge", "Entries in the target index: distinct kmers for map and offheap, suffixes for sa, text length for fm");
+		appendSample(sb, "index_size", "type=\"" + escape(indexType) + "\"", indexSize);
+		if(pipeline != null) {
+			appendHeader(sb, "pipeline_queue_batches", "gauge", "Batches of reads waiting between pipeline stages, by queue");
+			appendSample(sb, "pipeline_queue_batches", "queue=\"match\"", pipeline.getMatchQueueSize());
+			appendSample(sb, "pipeline_queue_batches", "queue=\"write\"", pipeline.getWriteQueueSize());
+			appendHeader(sb, "pipeline_queue_mean_batches", "gauge", "Mean batches waiting between pipeline stages since mapping started, by queue");
+			appendSample(sb, "pipeline_queue_mean_batches", "queue=\"match\"", pipeline.getMeanMatchQueueSize());
+			appendSample(sb, "pipeline_queue_mean_batches", "queue=\"write\"", pipeline.getMeanWriteQueueSize());
+			appendHeader(sb, "pipeline_queue_full_total", "counter", "Times a stage blocked because the queue after it was full, by queue");
+			appendSample(sb, "pipeline_queue_full_total", "queue=\"match\"", pipeline.getMatchQueueFullCount());
+			appendSample(sb, "pipeline_queue_full_total", "queue=\"write\"", pipeline.getWriteQueueFullCount());
+			appendMetric(sb, "pipeline_queue_depth", "gauge", "Max batches waiting in each pipeline queue", pipeline.getQueueDepth());
+		}
+		appendMetric(sb, "finished", "gauge", "1 if mapping is finished", finished ? 1 : 0);
+		appendMetric(sb, "last_update_timestamp_seconds", "gauge", "Unix time of this update", System.currentTimeMillis() / 1000.0);
+		try {
+			FileWriter w = new FileWriter(tmpFile);
+			w.write(sb.toString());
+			w.close();
+			if(!tmpFile.renameTo(promFile)) {
+				System.err.println("Could not rename " + tmpFile + " to " + promFile);
+			}
+		} catch(IOException e) {
+			// Don't kill the mapping because metrics could not be written
+			System.err.println("Could not write metrics file " + promFile + ": " + e.getMessage());
+		}
+	}
+
+	private void appendMetric(StringBuilder sb, String name, String type, String help, double value) {
+		appendHeader(sb, name, type, help);
+		appendSample(sb, name, null, value);
+	}
+
+	private static void appendHeader(StringBuilder sb, String name, String type, String help) {
+		sb.append("# HELP ").append(PREFIX).append(name).append(" ").append(help).append("\n");
+		sb.append("# TYPE ").append(PREFIX).append(name).append(" ").append(type).append("\n");
+	}
+
+	private void appendSample(StringBuilder sb, String name, String extraLabel, double value) {
+		sb.append(PREFIX).append(name).append("{sample=\"").append(escape(sample)).append("\"");
+		if(extraLabel != null) {
+			sb.append(",").append(extraLabel);
+		}
+		sb.append("} ");
+		if(value == Math.rint(value) && Math.abs(value) < 1e15) {
+			sb.append((long) value);
+		} else {
+			sb.append(value);
+		}
+		sb.append("\n");
+	}
+
+	private static String escape(String labelValue) {
+		return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+}
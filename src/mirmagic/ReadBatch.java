@@ -0,0 +1,115 @@
+package mirmagic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.sf.samtools.SAMRecord;
+
+/**
+ * A batch of reads and the alignments found for them, passed between the stages of a MappingPipeline
+ * The batch also carries the counts of its reads, so totals can be kept of exactly the reads written
+ * Batches are recycled: clearing a batch keeps its read array, alignment list, stats and histograms for the next reads
+ * @author prussell
+ *
+ */
+public class ReadBatch {
+
+	private FastqSequence[] reads;
+	private int size = 0;
+	private long index = -1; // Position of the batch in the input
+	private long endOffset = -1; // Byte offset in the fastq of the first read after the batch
+	private List<SAMRecord> alignments = new ArrayList<SAMRecord>();
+	private MappingStats stats = new MappingStats();
+	private ReadLengthHistograms histograms = null;
+	private boolean histogramsUsed = false; // Whether the histograms were used for the current reads
+	private long[] groupCounts = null; // Reads mapped to each group, if counted
+
+	/**
+	 * @param capacity Max number of reads in the batch
+	 */
+	public ReadBatch(int capacity) {
+		if(capacity < 1) {
+			throw new IllegalArgumentException("Batch size must be positive: " + capacity);
+		}
+		reads = new FastqSequence[capacity];
+	}
+
+	/**
+	 * Empty the batch for reuse
+	 * @param index Position of the next batch of reads in the input
+	 */
+	public void clear(long index) {
+		for(int i = 0; i < size; i++) {
+			reads[i] = null;
+		}
+		size = 0;
+		this.index = index;
+		endOffset = -1;
+		alignments.clear();
+		stats.reset();
+		if(histograms != null) {
+			histograms.clear();
+		}
+		histogramsUsed = false;
+		if(groupCounts != null) {
+			Arrays.fill(groupCounts, 0);
+		}
+	}
+
+	/**
+	 * @param read Read to add
+	 */
+	public void add(FastqSequence read) {
+		if(isFull()) {
+			throw new IllegalStateException("Batch is full");
+		}
+		reads[size++] = read;
+	}
+
+	public boolean isFull() {return size == reads.length;}
+	public boolean isEmpty() {return size == 0;}
+	public int size() {return size;}
+	public FastqSequence get(int i) {return reads[i];}
+	public long getIndex() {return index;}
+	public long getEndOffset() {return endOffset;}
+	public void setEndOffset(long endOffset) {this.endOffset = endOffset;}
+
+	/**
+	 * @return Counts of the reads in the batch, to add to while matching
+	 */
+	public MappingStats getStats() {return stats;}
+
+	/**
+	 * @return Read length histograms of the batch, created on first use
+	 */
+	public ReadLengthHistograms getHistograms() {
+		if(histograms == null) {
+			histograms = new ReadLengthHistograms();
+		}
+		histogramsUsed = true;
+		return histograms;
+	}
+
+	/**
+	 * @return True iff histograms were kept for the current reads of the batch
+	 */
+	public boolean hasHistograms() {return histogramsUsed;}
+
+	/**
+	 * @param numGroups Number of groups
+	 * @return Number of reads of the batch mapped to each group, created on first use
+	 */
+	public long[] getGroupCounts(int numGroups) {
+		if(groupCounts == null || groupCounts.length != numGroups) {
+			groupCounts = new long[numGroups];
+		}
+		return groupCounts;
+	}
+
+	/**
+	 * @return Alignments of the reads in the batch, to add to while matching
+	 */
+	public List<SAMRecord> getAlignments() {return alignments;}
+
+}
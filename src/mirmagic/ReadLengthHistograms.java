@@ -0,0 +1,257 @@
+package mirmagic;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * Histograms of read lengths by mapping outcome and of match lengths, accumulated while mapping
+ * Reads are counted by their length as read from the fastq and by the length that was searched, i.e. after
+ * adapter trimming, in one column per outcome; alignments are counted by the length of the kmer match
+ * Counts are plain long arrays that grow to the longest length seen; not thread safe, so give each thread
+ * its own and merge them
+ * @author prussell
+ *
+ */
+public class ReadLengthHistograms {
+
+	public static final int UNIQUELY_MAPPED = 0;
+	public static final int MULTI_MAPPED = 1;
+	public static final int UNMAPPED = 2;
+	public static final int TOO_SHORT = 3;
+	public static final int ILLEGAL_CHAR = 4;
+	public static final int TOO_MANY_NS = 5;
+	public static final int FAILED_LENGTH_FILTER = 6;
+
+	private static final String[] OUTCOME_NAMES = {"uniquely_mapped", "multi_mapped", "unmapped", "too_short", "illegal_char", "too_many_ns", "failed_length_filter"};
+
+	private long[] rawLength = new long[64]; // Reads by length in the fastq
+	private long[][] outcomeByLength = new long[OUTCOME_NAMES.length][64]; // Reads by outcome and searched length
+	private long[] matchLength = new long[64]; // Alignments by length of the kmer match
+
+	/**
+	 * Count a read
+	 * @param rawLength Length of the read in the fastq
+	 * @param length Length after trimming
+	 * @param outcome Outcome of the read, one of the constants in this class
+	 */
+	public void addRead(int rawLength, int length, int outcome) {
+		this.rawLength = increment(this.rawLength, rawLength);
+		outcomeByLength[outcome] = increment(outcomeByLength[outcome], length);
+	}
+
+	/**
+	 * Count a read that was searched
+	 * @param rawLength Length of the read in the fastq
+	 * @param length Length after trimming
+	 * @param numTargets Number of targets the read matched
+	 */
+	public void addMappedRead(int rawLength, int length, int numTargets) {
+		addRead(rawLength, length, numTargets == 0 ? UNMAPPED : numTargets == 1 ? UNIQUELY_MAPPED : MULTI_MAPPED);
+	}
+
+	/**
+	 * Count an alignment
+	 * @param k Length of the kmer match
+	 */
+	public void addMatch(int k) {
+		matchLength = increment(matchLength, k);
+	}
+
+	/**
+	 * Set all counts to zero, keeping the arrays for reuse
+	 */
+	public void clear() {
+		Arrays.fill(rawLength, 0);
+		for(long[] counts : outcomeByLength) {
+			Arrays.fill(counts, 0);
+		}
+		Arrays.fill(matchLength, 0);
+	}
+
+	/**
+	 * Add the counts from another set of histograms to these
+	 * @param other Histograms to add
+	 */
+	public void merge(ReadLengthHistograms other) {
+		rawLength = add(rawLength, other.rawLength);
+		for(int i = 0; i < outcomeByLength.length; i++) {
+			outcomeByLength[i] = add(outcomeByLength[i], other.outcomeByLength[i]);
+		}
+		matchLength = add(matchLength, other.matchLength);
+	}
+
+	/**
+	 * Store the counts in properties, e.g. in a checkpoint, as one comma separated list per column
+	 * @param props Properties to add to
+	 * @param prefix Prefix of the property names
+	 */
+	public void toProperties(Properties props, String prefix) {
+		props.setProperty(prefix + "reads", join(rawLength));
+		for(int i = 0; i < OUTCOME_NAMES.length; i++) {
+			props.setProperty(prefix + OUTCOME_NAMES[i], join(outcomeByLength[i]));
+		}
+		props.setProperty(prefix + "alignments", join(matchLength));
+	}
+
+	/**
+	 * Read counts stored with toProperties()
+	 * @param props Properties
+	 * @param prefix Prefix of the property names
+	 * @return The histograms
+	 */
+	public static ReadLengthHistograms fromProperties(Properties props, String prefix) {
+		ReadLengthHistograms rtrn = new ReadLengthHistograms();
+		rtrn.rawLength = split(props, prefix + "reads");
+		for(int i = 0; i < OUTCOME_NAMES.length; i++) {
+			rtrn.outcomeByLength[i] = split(props, prefix + OUTCOME_NAMES[i]);
+		}
+		rtrn.matchLength = split(props, prefix + "alignments");
+		return rtrn;
+	}
+
+	private static String join(long[] counts) {
+		StringBuilder sb = new StringBuilder();
+		int last = lastNonzero(counts);
+		for(int i = 0; i <= last; i++) {
+			if(i > 0) sb.append(",");
+			sb.append(counts[i]);
+		}
+		return sb.toString();
+	}
+
+	private static long[] split(Properties props, String name) {
+		String value = props.getProperty(name);
+		if(value == null) {
+			throw new IllegalArgumentException("Missing histogram " + name);
+		}
+		long[] rtrn = new long[64];
+		if(value.isEmpty()) {
+			return rtrn;
+		}
+		LineTokenizer tokenizer = new LineTokenizer();
+		tokenizer.tokenize(value, ',');
+		if(tokenizer.getFieldCount() > rtrn.length) {
+			rtrn = new long[tokenizer.getFieldCount()];
+		}
+		for(int i = 0; i < tokenizer.getFieldCount(); i++) {
+			rtrn[i] = tokenizer.asLong(i);
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Write the histograms as a table with one row per length, or as JSON with one array per column
+	 * if the file name ends in .json
+	 * @param file Output file
+	 * @throws IOException
+	 */
+	public void write(String file) throws IOException {
+		FileWriter w = new FileWriter(file);
+		if(file.toLowerCase().endsWith(".json")) {
+			writeJson(w);
+		} else {
+			writeTable(w);
+		}
+		w.close();
+	}
+
+	private void writeTable(FileWriter w) throws IOException {
+		StringBuilder sb = new StringBuilder("length\treads\tsearched_reads");
+		for(String name : OUTCOME_NAMES) {
+			sb.append("\t").append(name);
+		}
+		sb.append("\talignments\n");
+		int maxLength = maxLength();
+		for(int len = 0; len <= maxLength; len++) {
+			StringBuilder row = new StringBuilder();
+			boolean nonzero = get(rawLength, len) > 0 || get(matchLength, len) > 0;
+			row.append(len).append("\t").append(get(rawLength, len)).append("\t").append(searched(len));
+			for(long[] counts : outcomeByLength) {
+				nonzero |= get(counts, len) > 0;
+				row.append("\t").append(get(counts, len));
+			}
+			row.append("\t").append(get(matchLength, len)).append("\n");
+			if(nonzero) sb.append(row);
+		}
+		w.write(sb.toString());
+	}
+
+	private void writeJson(FileWriter w) throws IOException {
+		int maxLength = maxLength();
+		StringBuilder sb = new StringBuilder("{\n");
+		appendJsonArray(sb, "reads", rawLength, maxLength);
+		sb.append(",\n");
+		long[] searched = new long[maxLength + 1];
+		for(int len = 0; len <= maxLength; len++) {
+			searched[len] = searched(len);
+		}
+		appendJsonArray(sb, "searched_reads", searched, maxLength);
+		for(int i = 0; i < OUTCOME_NAMES.length; i++) {
+			sb.append(",\n");
+			appendJsonArray(sb, OUTCOME_NAMES[i], outcomeByLength[i], maxLength);
+		}
+		sb.append(",\n");
+		appendJsonArray(sb, "alignments", matchLength, maxLength);
+		sb.append("\n}\n");
+		w.write(sb.toString());
+	}
+
+	/**
+	 * Append an array indexed by length, from 0 to the max length
+	 */
+	private static void appendJsonArray(StringBuilder sb, String name, long[] counts, int maxLength) {
+		sb.append("  \"").append(name).append("\": [");
+		for(int len = 0; len <= maxLength; len++) {
+			if(len > 0) sb.append(", ");
+			sb.append(get(counts, len));
+		}
+		sb.append("]");
+	}
+
+	/**
+	 * @return Number of reads of a trimmed length that were searched, whatever the result
+	 */
+	private long searched(int len) {
+		return get(outcomeByLength[UNIQUELY_MAPPED], len) + get(outcomeByLength[MULTI_MAPPED], len) + get(outcomeByLength[UNMAPPED], len);
+	}
+
+	private int maxLength() {
+		int rtrn = Math.max(lastNonzero(rawLength), lastNonzero(matchLength));
+		for(long[] counts : outcomeByLength) {
+			rtrn = Math.max(rtrn, lastNonzero(counts));
+		}
+		return rtrn;
+	}
+
+	private static int lastNonzero(long[] counts) {
+		for(int i = counts.length - 1; i >= 0; i--) {
+			if(counts[i] > 0) return i;
+		}
+		return -1;
+	}
+
+	private static long get(long[] counts, int i) {
+		return i < counts.length ? counts[i] : 0;
+	}
+
+	private static long[] increment(long[] counts, int i) {
+		if(i >= counts.length) {
+			counts = Arrays.copyOf(counts, Math.max(i + 1, 2 * counts.length));
+		}
+		counts[i]++;
+		return counts;
+	}
+
+	private static long[] add(long[] counts, long[] other) {
+		if(other.length > counts.length) {
+			counts = Arrays.copyOf(counts, other.length);
+		}
+		for(int i = 0; i < other.length; i++) {
+			counts[i] += other[i];
+		}
+		return counts;
+	}
+
+}
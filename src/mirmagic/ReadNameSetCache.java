@@ -0,0 +1,87 @@
+package mirmagic;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cache of the set of read names mapped to each reference sequence, bounded by estimated memory
+ * The least recently used sets are evicted when the total estimated size is over the limit
+ * Safe to share between threads; two threads that miss on the same reference both compute the set
+ * @author prussell
+ *
+ */
+public class ReadNameSetCache {
+
+	private static final int SET_ENTRY_BYTES = 48; // Hash set entry, table slot and String object
+	private static final int SET_BYTES = 64;
+
+	private long maxBytes;
+	private long bytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private Map<Long, Set<String>> sets = new LinkedHashMap<Long, Set<String>>(16, 0.75f, true);
+	private Map<Long, Long> sizes = new HashMap<Long, Long>();
+
+	/**
+	 * @param maxBytes Maximum estimated bytes of the cached sets
+	 */
+	public ReadNameSetCache(long maxBytes) {
+		if(maxBytes < 0) {
+			throw new IllegalArgumentException("Cache size must be nonnegative: " + maxBytes);
+		}
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @param key Key of the reference, e.g. its ID
+	 * @return The cached set of read names, or null if not cached
+	 */
+	public synchronized Set<String> get(long key) {
+		Set<String> rtrn = sets.get(Long.valueOf(key));
+		if(rtrn == null) misses++;
+		else hits++;
+		return rtrn;
+	}
+
+	/**
+	 * Cache a set of read names, evicting older sets to make room
+	 * A set larger than the whole cache is not cached
+	 * @param key Key of the reference, e.g. its ID
+	 * @param readNames Read names mapped to the reference; must not be changed afterwards
+	 * @return Unmodifiable view of the set
+	 */
+	public synchronized Set<String> put(long key, Set<String> readNames) {
+		Long refKey = Long.valueOf(key);
+		Set<String> rtrn = Collections.unmodifiableSet(readNames);
+		long size = estimateBytes(readNames);
+		if(size > maxBytes || sets.containsKey(refKey)) {
+			return rtrn;
+		}
+		Iterator<Map.Entry<Long, Set<String>>> iter = sets.entrySet().iterator();
+		while(bytes + size > maxBytes && iter.hasNext()) {
+			Long evicted = iter.next().getKey();
+			iter.remove();
+			bytes -= sizes.remove(evicted).longValue();
+		}
+		sets.put(refKey, rtrn);
+		sizes.put(refKey, Long.valueOf(size));
+		bytes += size;
+		return rtrn;
+	}
+
+	public synchronized long getHits() {return hits;}
+	public synchronized long getMisses() {return misses;}
+
+	private static long estimateBytes(Set<String> readNames) {
+		long rtrn = SET_BYTES;
+		for(String name : readNames) {
+			rtrn += SET_ENTRY_BYTES + 2L * name.length();
+		}
+		return rtrn;
+	}
+
+}
@@ -1,19 +1,177 @@
 package mirmagic;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
 import java.util.Collection;
 
+import net.sf.samtools.BAMFileWriter;
 import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriterImpl;
 import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.SAMTextWriter;
+import net.sf.samtools.util.BlockCompressedStreamConstants;
 
 public class SamtoolsUtils {
 	
+	/**
+	 * Output file name meaning standard output
+	 */
+	public static final String STDOUT = "-";
+	
+	/**
+	 * Output format: compressed BAM
+	 */
+	public static final String FORMAT_BAM = "bam";
+	
+	/**
+	 * Output format: BAM with uncompressed blocks, for piping into another program
+	 */
+	public static final String FORMAT_UNCOMPRESSED_BAM = "ubam";
+	
+	/**
+	 * Output format: SAM text
+	 */
+	public static final String FORMAT_SAM = "sam";
+	
+	private static final int STDOUT_BUFFER_SIZE = 1 << 16;
+	
+	/**
+	 * Create an unsorted SAM or BAM writer with the header already written
+	 * @param output Output file name, or STDOUT to write to standard output
+	 * @param format FORMAT_BAM, FORMAT_UNCOMPRESSED_BAM or FORMAT_SAM
+	 * @param header SAM header
+	 * @return Writer
+	 * @throws IOException
+	 */
+	public static final SAMFileWriterImpl createWriter(String output, String format, SAMFileHeader header) throws IOException {
+		boolean stdout = output.equals(STDOUT);
+		File file = stdout ? null : new File(output);
+		OutputStream os = stdout ? new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), STDOUT_BUFFER_SIZE) : new FileOutputStream(file);
+		SAMFileWriterImpl rtrn;
+		if(format.equals(FORMAT_BAM)) {
+			rtrn = new BAMFileWriter(new BamFlushEventOutputStream(os, output), file);
+		} else if(format.equals(FORMAT_UNCOMPRESSED_BAM)) {
+			rtrn = new BAMFileWriter(new BamFlushEventOutputStream(os, output), file, 0);
+		} else if(format.equals(FORMAT_SAM)) {
+			rtrn = new SAMTextWriter(os);
+		} else {
+			os.close();
+			throw new IllegalArgumentException("Invalid output format: " + format);
+		}
+		rtrn.setSortOrder(SAMFileHeader.SortOrder.unsorted, false);
+		rtrn.setHeader(header);
+		return rtrn;
+	}
+	
+	/**
+	 * Get the length of a closed SAM or BAM file without the BAM end of file marker block, i.e. the position
+	 * at which more records can be appended
+	 * @param output Output file name
+	 * @param format Format the file was written in: FORMAT_BAM, FORMAT_UNCOMPRESSED_BAM or FORMAT_SAM
+	 * @return Length of the file up to the end of the last record
+	 * @throws IOException
+	 */
+	public static final long endOfRecords(String output, String format) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(output, "r");
+		long length = raf.length();
+		if(isBam(format)) {
+			byte[] eof = BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK;
+			byte[] tail = new byte[eof.length];
+			if(length >= eof.length) {
+				raf.seek(length - eof.length);
+				raf.readFully(tail);
+			}
+			if(!Arrays.equals(tail, eof)) {
+				raf.close();
+				throw new IllegalArgumentException("File " + output + " does not end in a BAM end of file marker");
+			}
+			length -= eof.length;
+		}
+		raf.close();
+		return length;
+	}
+	
+	private static boolean isBam(String format) {
+		if(format.equals(FORMAT_BAM) || format.equals(FORMAT_UNCOMPRESSED_BAM)) return true;
+		if(format.equals(FORMAT_SAM)) return false;
+		throw new IllegalArgumentException("Invalid output format: " + format);
+	}
+	
+	/**
+	 * Reopen a SAM or BAM file written by a writer from createWriter() to add more records
+	 * The file is first cut to the end of a record, e.g. from endOfRecords(), dropping anything after it;
+	 * records are then appended without writing the header again
+	 * @param output Output file name
+	 * @param format Format the file was written in: FORMAT_BAM, FORMAT_UNCOMPRESSED_BAM or FORMAT_SAM
+	 * @param header SAM header of the file
+	 * @param length Position to append at
+	 * @return Writer that appends to the file
+	 * @throws IOException
+	 */
+	public static final SAMFileWriterImpl createAppendingWriter(String output, String format, SAMFileHeader header, long length) throws IOException {
+		if(output.equals(STDOUT)) {
+			throw new IllegalArgumentException("Cannot append to standard output");
+		}
+		isBam(format); // Checks the format
+		File file = new File(output);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		if(raf.length() < length) {
+			raf.close();
+			throw new IllegalArgumentException("File " + output + " is shorter than expected length " + length);
+		}
+		raf.setLength(length);
+		raf.close();
+		OutputStream os = new FileOutputStream(file, true);
+		SAMFileWriterImpl rtrn;
+		if(format.equals(FORMAT_BAM)) {
+			rtrn = new BAMFileWriter(new BamFlushEventOutputStream(os, output), file) {
+				@Override
+				protected void writeHeader(String textHeader) {}
+			};
+		} else if(format.equals(FORMAT_UNCOMPRESSED_BAM)) {
+			rtrn = new BAMFileWriter(new BamFlushEventOutputStream(os, output), file, 0) {
+				@Override
+				protected void writeHeader(String textHeader) {}
+			};
+		} else {
+			rtrn = new SAMTextWriter(os) {
+				@Override
+				public void writeHeader(String textHeader) {}
+			};
+		}
+		rtrn.setSortOrder(SAMFileHeader.SortOrder.unsorted, false);
+		// Needed to encode records; the overridden writeHeader() writes nothing
+		rtrn.setHeader(header);
+		return rtrn;
+	}
+	
 	/**
 	 * Create a SAM file header for the sequences in a fasta file
+	 * Lengths come from the fasta index, so the sequences are not read
 	 * @param fastaFile Fasta file
 	 * @return SAM header with these sequences and lengths
 	 */
 	public static final SAMFileHeader createSamHeader(String fastaFile) {
-		Collection<Sequence> seqs = FastaReader.readFromFile(fastaFile);
+		FastaIndex index = FastaIndex.load(fastaFile);
+		SAMFileHeader rtrn = new SAMFileHeader();
+		for(String name : index.getNames()) {
+			rtrn.addSequence(new SAMSequenceRecord(name, index.getLength(name)));
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Create a SAM file header for sequences already in memory
+	 * @param seqs Sequences
+	 * @return SAM header with these sequences and lengths
+	 */
+	public static final SAMFileHeader createSamHeader(Collection<Sequence> seqs) {
 		SAMFileHeader rtrn = new SAMFileHeader();
 		for(Sequence seq : seqs) {
 			rtrn.addSequence(new SAMSequenceRecord(seq.getName(), seq.getLength()));
@@ -9,6 +9,7 @@ public class Sequence {
 	
 	private String sequence;
 	private String name;
+	private int hash; // Cached hash code, or 0 if not computed yet
 	
 	/**
 	 * @param name Sequence name
@@ -62,11 +63,17 @@ public class Sequence {
 	
 	@Override
 	public boolean equals(Object o) {
-		if(!o.getClass().equals(Sequence.class)) {
+		if(this == o) {
+			return true;
+		}
+		if(!(o instanceof Sequence)) {
 			return false;
 		}
 		Sequence otherSeq = (Sequence)o;
-		if(!getName().equals(otherSeq.getName()))	{
+		if(hashCode() != otherSeq.hashCode()) {
+			return false;
+		}
+		if(getName() == null ? otherSeq.getName() != null : !getName().equals(otherSeq.getName()))	{
 			return false;
 		}
 		if(!getSequenceBases().equals(otherSeq.getSequenceBases()))	{
@@ -75,10 +82,25 @@ public class Sequence {
 		return true;
 	}
 	
+	/**
+	 * Combine the hash codes of a name and the string hash code of the bases
+	 * Subclasses that store bases differently must compute the same value
+	 * @param name Sequence name or null
+	 * @param basesHash Hash code of the bases as a String
+	 * @return Hash code
+	 */
+	protected static int hashCode(String name, int basesHash) {
+		return 31 * (name == null ? 0 : name.hashCode()) + basesHash;
+	}
+	
 	@Override
 	public int hashCode() {
-		String s = getName() + ":" + getSequenceBases();
-		return s.hashCode();
+		int h = hash;
+		if(h == 0) {
+			h = hashCode(name, sequence.hashCode());
+			hash = h;
+		}
+		return h;
 	}
 	
 }
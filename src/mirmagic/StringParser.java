@@ -11,7 +11,9 @@ package mirmagic;
 public class StringParser {
 
 	private static String whitespaceDelimiter = "\\s++";
+	private static final String REGEX_METACHARACTERS = ".$|()[]{}^?*+\\";
 	private String[] tokens;
+	private LineTokenizer tokenizer = new LineTokenizer();
 	
 	/**
 	 * 
@@ -36,7 +38,8 @@ public class StringParser {
 	public void parse(String s) {
 		if(s == null) return;
 		if(s.equals("")) return;
-		tokens = s.split(whitespaceDelimiter);
+		tokenizer.tokenize(s);
+		tokens = tokenizer.toStringArray();
 	}
 	
 	/**
@@ -52,7 +55,9 @@ public class StringParser {
 	 * @return Tokens
 	 */
 	public static String[] getTokens(String s) {
-		return s.split(whitespaceDelimiter);
+		LineTokenizer t = new LineTokenizer();
+		t.tokenize(s);
+		return t.toStringArray();
 	}
 
 	/**
@@ -89,7 +94,30 @@ public class StringParser {
 	public void parse(String s, String regexp) {
 		if(s == null) return;
 		if(s.equals("")) return;
-		tokens = s.split(regexp);
+		char delimiter = literalDelimiter(regexp);
+		if(delimiter != 0) {
+			tokenizer.tokenize(s, delimiter);
+			tokens = tokenizer.toStringArray();
+		} else if(regexp.equals(whitespaceDelimiter)) {
+			tokenizer.tokenize(s);
+			tokens = tokenizer.toStringArray();
+		} else {
+			tokens = s.split(regexp);
+		}
+	}
+	
+	/**
+	 * @param regexp Regular expression for delimiter
+	 * @return The character if the expression matches exactly one literal character, e.g. "\t" or "\\.", otherwise 0
+	 */
+	private static char literalDelimiter(String regexp) {
+		if(regexp.length() == 1 && REGEX_METACHARACTERS.indexOf(regexp.charAt(0)) < 0) {
+			return regexp.charAt(0);
+		}
+		if(regexp.length() == 2 && regexp.charAt(0) == '\\' && REGEX_METACHARACTERS.indexOf(regexp.charAt(1)) >= 0) {
+			return regexp.charAt(1);
+		}
+		return 0;
 	}
 	
 	/**
@@ -0,0 +1,245 @@
+package mirmagic;
+
+import java.util.Arrays;
+
+/**
+ * Target index that handles every kmer length at once, using a suffix array over the concatenated targets
+ * Only the suffixes that can start a match are stored: every position of targets at least maxk long
+ * that is followed by maxk bases, and only the first position of shorter targets, which must match in full
+ * Suffixes are sorted on their first maxk bases, so a single descent through the suffix array from each
+ * query position finds the full length matches to short targets at each depth on the way down and the
+ * maxk matches to longer targets at the bottom, instead of one lookup per kmer length
+ * @author prussell
+ *
+ */
+public class SuffixArrayIndex implements TargetIndex {
+
+	private static final byte SEPARATOR = 0; // Sorts before all bases, ends every target
+	private static final byte OFFSET = 1; // Added to base codes in the text to make room for the separator
+	private static final byte CODE_N = BaseCodes.N + OFFSET;
+	private static final int INSERTION_SORT_SIZE = 16;
+
+	private int mink;
+	private int maxk;
+	private byte[] text = new byte[1024]; // Concatenated targets, each followed by a separator
+	private int textLen = 0;
+	private int[] segmentStart = new int[16]; // Start position of each target in the text
+	private int[] segmentTarget = new int[16]; // Target ID of each target in the text
+	private int numSegments = 0;
+	private int[] sa = new int[1024]; // Text positions of suffixes that can start a match
+	private int saLen = 0;
+	private long numEntries;
+
+	/**
+	 * @param mink Minimum kmer length of any target
+	 * @param maxk Maximum kmer length of any target
+	 */
+	public SuffixArrayIndex(int mink, int maxk) {
+		if(mink < 1 || mink > maxk) {
+			throw new IllegalArgumentException("Invalid kmer lengths: " + mink + ", " + maxk);
+		}
+		this.mink = mink;
+		this.maxk = maxk;
+	}
+
+	@Override
+	public void addTarget(int targetId, String bases, int k) {
+		int len = bases.length();
+		if(k < mink || k > maxk || (k < maxk && k != len)) {
+			throw new IllegalArgumentException("Kmer length must be " + maxk + " or the full length of a shorter target: " + k);
+		}
+		if((long) textLen + len + 1 > Integer.MAX_VALUE - 8) {
+			throw new IllegalStateException("Too many target bases for suffix array index");
+		}
+		if(numSegments == segmentStart.length) {
+			segmentStart = Arrays.copyOf(segmentStart, 2 * numSegments);
+			segmentTarget = Arrays.copyOf(segmentTarget, 2 * numSegments);
+		}
+		segmentStart[numSegments] = textLen;
+		segmentTarget[numSegments] = targetId;
+		numSegments++;
+		ensureTextCapacity(textLen + len + 1);
+		int numSuffixes = len - k + 1;
+		ensureSaCapacity(saLen + numSuffixes);
+		for(int i = 0; i < numSuffixes; i++) {
+			sa[saLen++] = textLen + i;
+		}
+		byte[] codes = BaseCodes.encode(bases);
+		for(int i = 0; i < len; i++) {
+			text[textLen++] = (byte) (codes[i] + OFFSET);
+		}
+		text[textLen++] = SEPARATOR;
+	}
+
+	@Override
+	public void finish() {
+		text = Arrays.copyOf(text, textLen);
+		sa = Arrays.copyOf(sa, saLen);
+		segmentStart = Arrays.copyOf(segmentStart, numSegments);
+		segmentTarget = Arrays.copyOf(segmentTarget, numSegments);
+		sort(0, saLen, 0);
+		numEntries = saLen;
+	}
+
+	@Override
+	public void search(byte[] query, int length, MatchVisitor visitor) {
+		for(int p = 0; p + mink <= length; p++) {
+			descend(query, length, p, 0, 0, saLen, visitor);
+		}
+	}
+
+	@Override
+	public long size() {
+		return numEntries;
+	}
+
+	/**
+	 * Narrow the range of suffixes that share a prefix with the query starting at a position, reporting matches
+	 * @param codes Query base codes
+	 * @param length Query length
+	 * @param queryPos Start position on query
+	 * @param depth Number of query bases matched by every suffix in the range
+	 * @param lo First suffix array index of the range
+	 * @param hi Suffix array index after the range
+	 * @param visitor Visitor to receive matches
+	 */
+	private void descend(byte[] codes, int length, int queryPos, int depth, int lo, int hi, MatchVisitor visitor) {
+		if(depth == maxk) {
+			for(int i = lo; i < hi; i++) {
+				report(sa[i], queryPos, depth, visitor);
+			}
+			return;
+		}
+		// Suffixes that end here are short targets matched in full
+		int ended = upperBound(lo, hi, depth, SEPARATOR);
+		if(depth >= mink) {
+			for(int i = lo; i < ended; i++) {
+				report(sa[i], queryPos, depth, visitor);
+			}
+		}
+		if(queryPos + depth == length) return;
+		byte c = (byte) (codes[queryPos + depth] + OFFSET);
+		if(c == CODE_N) {
+			int start = ended;
+			while(start < hi) {
+				byte b = charAt(sa[start], depth);
+				int end = upperBound(start, hi, depth, b);
+				descend(codes, length, queryPos, depth + 1, start, end, visitor);
+				start = end;
+			}
+			return;
+		}
+		int start = lowerBound(ended, hi, depth, c);
+		int end = upperBound(start, hi, depth, c);
+		if(start < end) {
+			descend(codes, length, queryPos, depth + 1, start, end, visitor);
+		}
+		// N's in targets match any query base
+		start = lowerBound(end, hi, depth, CODE_N);
+		if(start < hi) {
+			descend(codes, length, queryPos, depth + 1, start, hi, visitor);
+		}
+	}
+
+	private void report(int textPos, int queryPos, int k, MatchVisitor visitor) {
+		int segment = Arrays.binarySearch(segmentStart, textPos);
+		if(segment < 0) segment = -segment - 2;
+		visitor.match(segmentTarget[segment], queryPos, textPos - segmentStart[segment], k);
+	}
+
+	private byte charAt(int suffix, int depth) {
+		return text[suffix + depth];
+	}
+
+	/**
+	 * @return First index in [lo, hi) whose suffix has a character >= c at depth, or hi
+	 */
+	private int lowerBound(int lo, int hi, int depth, byte c) {
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(charAt(sa[mid], depth) < c) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * @return First index in [lo, hi) whose suffix has a character > c at depth, or hi
+	 */
+	private int upperBound(int lo, int hi, int depth, byte c) {
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(charAt(sa[mid], depth) <= c) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Multikey quicksort of suffixes on their first maxk characters, stopping at separators
+	 * @param lo First index to sort
+	 * @param hi Index after last index to sort
+	 * @param depth Number of characters already known to be shared by the suffixes in the range
+	 */
+	private void sort(int lo, int hi, int depth) {
+		while(hi - lo > 1 && depth < maxk) {
+			if(hi - lo < INSERTION_SORT_SIZE) {
+				insertionSort(lo, hi, depth);
+				return;
+			}
+			byte pivot = charAt(sa[(lo + hi) >>> 1], depth);
+			int lt = lo;
+			int gt = hi - 1;
+			int i = lo;
+			while(i <= gt) {
+				byte c = charAt(sa[i], depth);
+				if(c < pivot) swap(lt++, i++);
+				else if(c > pivot) swap(i, gt--);
+				else i++;
+			}
+			sort(lo, lt, depth);
+			sort(gt + 1, hi, depth);
+			if(pivot == SEPARATOR) return;
+			lo = lt;
+			hi = gt + 1;
+			depth++;
+		}
+	}
+
+	private void insertionSort(int lo, int hi, int depth) {
+		for(int i = lo + 1; i < hi; i++) {
+			for(int j = i; j > lo && compare(sa[j - 1], sa[j], depth) > 0; j--) {
+				swap(j - 1, j);
+			}
+		}
+	}
+
+	private int compare(int suffix1, int suffix2, int depth) {
+		for(int d = depth; d < maxk; d++) {
+			byte c1 = charAt(suffix1, d);
+			byte c2 = charAt(suffix2, d);
+			if(c1 != c2) return c1 - c2;
+			if(c1 == SEPARATOR) return 0;
+		}
+		return 0;
+	}
+
+	private void swap(int i, int j) {
+		int tmp = sa[i];
+		sa[i] = sa[j];
+		sa[j] = tmp;
+	}
+
+	private void ensureTextCapacity(int capacity) {
+		if(capacity > text.length) {
+			text = Arrays.copyOf(text, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(capacity, 2L * text.length)));
+		}
+	}
+
+	private void ensureSaCapacity(int capacity) {
+		if(capacity > sa.length) {
+			sa = Arrays.copyOf(sa, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(capacity, 2L * sa.length)));
+		}
+	}
+
+}
@@ -0,0 +1,150 @@
+package mirmagic;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Seeded random targets, reads and group tables, for checking that different ways of mapping the same reads
+ * give the same results
+ * Targets are miRNA sized, some shorter than the usual k, some contained in others and some with an N
+ * Reads are targets or parts of targets with random flanks, reverse complements, reads with a substitution
+ * or an N, random reads and reads too short to match; many quality lines start with '@' or '+' so that
+ * record boundaries are ambiguous
+ * @author prussell
+ *
+ */
+public final class SyntheticData {
+
+	private static final char[] BASES = {'A', 'C', 'G', 'T'};
+	private static final int MIN_TARGET_LENGTH = 16;
+	private static final int MAX_TARGET_LENGTH = 25;
+	private static final int TARGETS_PER_GROUP = 3;
+	private static final int MIN_LENGTH_WITH_N = 20;
+
+	private SyntheticData() {}
+
+	/**
+	 * Write random targets
+	 * @param fasta Fasta file to write
+	 * @param numTargets Number of targets
+	 * @param random Random number generator
+	 * @return The target sequences in file order
+	 * @throws IOException
+	 */
+	public static List<String> writeTargets(String fasta, int numTargets, Random random) throws IOException {
+		List<String> rtrn = new ArrayList<String>();
+		BufferedWriter w = new BufferedWriter(new FileWriter(fasta));
+		for(int i = 0; i < numTargets; i++) {
+			int len = MIN_TARGET_LENGTH + random.nextInt(MAX_TARGET_LENGTH - MIN_TARGET_LENGTH + 1);
+			String bases;
+			if(i > 0 && random.nextInt(10) == 0) {
+				// Shares kmers with an earlier target
+				String other = rtrn.get(random.nextInt(rtrn.size()));
+				int sublen = Math.min(len, other.length());
+				int start = random.nextInt(other.length() - sublen + 1);
+				bases = other.substring(start, start + sublen).replace('N', 'A') + randomBases(len - sublen, random);
+			} else {
+				bases = randomBases(len, random);
+			}
+			// One N is within the default max proportion of N's for targets of this length
+			if(len >= MIN_LENGTH_WITH_N && random.nextInt(10) == 0) {
+				int pos = random.nextInt(len);
+				bases = bases.substring(0, pos) + 'N' + bases.substring(pos + 1);
+			}
+			rtrn.add(bases);
+			w.write(">" + targetName(i) + "\n" + bases + "\n");
+		}
+		w.close();
+		return rtrn;
+	}
+
+	/**
+	 * Write a text group table putting consecutive targets in the same group
+	 * @param groupTable File to write. Line format: ref_name group_name
+	 * @param numTargets Number of targets
+	 * @throws IOException
+	 */
+	public static void writeGroups(String groupTable, int numTargets) throws IOException {
+		BufferedWriter w = new BufferedWriter(new FileWriter(groupTable));
+		for(int i = 0; i < numTargets; i++) {
+			w.write(targetName(i) + "\tgroup" + (i / TARGETS_PER_GROUP) + "\n");
+		}
+		w.close();
+	}
+
+	/**
+	 * Write random reads of the targets
+	 * @param fastq Fastq file to write
+	 * @param targets Target sequences
+	 * @param numReads Number of reads
+	 * @param random Random number generator
+	 * @throws IOException
+	 */
+	public static void writeReads(String fastq, List<String> targets, int numReads, Random random) throws IOException {
+		BufferedWriter w = new BufferedWriter(new FileWriter(fastq));
+		for(int i = 0; i < numReads; i++) {
+			String read;
+			int kind = random.nextInt(10);
+			if(kind == 0) {
+				read = randomBases(15 + random.nextInt(26), random);
+			} else if(kind == 1) {
+				read = randomBases(1 + random.nextInt(10), random);
+			} else {
+				String target = targets.get(random.nextInt(targets.size()));
+				int start = random.nextInt(3) == 0 ? random.nextInt(4) : 0;
+				int end = random.nextInt(3) == 0 ? target.length() - random.nextInt(4) : target.length();
+				StringBuilder sb = new StringBuilder();
+				sb.append(randomBases(random.nextInt(4), random));
+				for(int j = start; j < end; j++) {
+					char c = target.charAt(j);
+					sb.append(c == 'N' ? BASES[random.nextInt(4)] : c);
+				}
+				sb.append(randomBases(random.nextInt(9), random));
+				if(kind == 2) {
+					int pos = random.nextInt(sb.length());
+					sb.setCharAt(pos, BASES[(BaseCodes.code(sb.charAt(pos)) + 1 + random.nextInt(3)) % 4]);
+				} else if(kind == 3) {
+					sb.setCharAt(random.nextInt(sb.length()), 'N');
+				}
+				read = kind == 4 ? BaseCodes.reverseComplement(sb) : sb.toString();
+			}
+			w.write("@read" + i + "\n" + read + "\n+\n" + quality(read.length(), random) + "\n");
+		}
+		w.close();
+	}
+
+	/**
+	 * @param i Target index
+	 * @return Name of the target in the fasta file and group table
+	 */
+	public static String targetName(int i) {
+		return "target" + i;
+	}
+
+	private static String randomBases(int len, Random random) {
+		char[] rtrn = new char[len];
+		for(int i = 0; i < len; i++) {
+			rtrn[i] = BASES[random.nextInt(4)];
+		}
+		return new String(rtrn);
+	}
+
+	/**
+	 * Random quality string, starting with '@' or '+' a third of the time
+	 */
+	private static String quality(int len, Random random) {
+		char[] rtrn = new char[len];
+		for(int i = 0; i < len; i++) {
+			rtrn[i] = (char) ('!' + random.nextInt(41));
+		}
+		int first = random.nextInt(6);
+		if(first == 0) rtrn[0] = '@';
+		else if(first == 1) rtrn[0] = '+';
+		return new String(rtrn);
+	}
+
+}
@@ -0,0 +1,57 @@
+package mirmagic;
+
+/**
+ * An index of target sequences that can be searched for perfect kmer matches with query sequences
+ * Each target is indexed with a single kmer length, and a query matches a target wherever a subsequence
+ * of the query of that length is identical to a subsequence of the target
+ * Case is ignored and N's are treated as wildcards that everything matches
+ * @author prussell
+ *
+ */
+public interface TargetIndex {
+
+	/**
+	 * Receives the matches found by a search
+	 * @author prussell
+	 *
+	 */
+	public interface MatchVisitor {
+
+		/**
+		 * @param targetId ID of the target sequence, as passed to addTarget()
+		 * @param queryPos Start position of the match on the query
+		 * @param targetPos Start position of the match on the target
+		 * @param k Match length
+		 */
+		public void match(int targetId, int queryPos, int targetPos, int k);
+
+	}
+
+	/**
+	 * Add a target sequence to the index
+	 * Call before finish()
+	 * @param targetId ID to report for matches to this target
+	 * @param bases Target sequence bases
+	 * @param k Kmer length to index for this target
+	 */
+	public void addTarget(int targetId, String bases, int k);
+
+	/**
+	 * Build the index after all targets have been added
+	 */
+	public void finish();
+
+	/**
+	 * Report every perfect kmer match between the query and the indexed targets
+	 * @param query Codes of the query bases from BaseCodes, with no illegal characters
+	 * @param length Query length; the array can be longer
+	 * @param visitor Visitor to receive the matches
+	 */
+	public void search(byte[] query, int length, MatchVisitor visitor);
+
+	/**
+	 * @return Number of distinct kmers or other entries in the index
+	 */
+	public long size();
+
+}